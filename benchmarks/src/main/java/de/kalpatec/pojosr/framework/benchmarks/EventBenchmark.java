@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+
+import de.kalpatec.pojosr.framework.felix.framework.ServiceRegistry;
+import de.kalpatec.pojosr.framework.felix.framework.util.EventDispatcher;
+
+/**
+ * Firing a service event to a given number of service listeners. A quarter
+ * of the listeners listen for the class of the service without a property
+ * filter, a quarter also filter by property, the others listen for other
+ * classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventBenchmark {
+
+	@Param({ "1", "10", "100", "1000" })
+	public int listeners;
+
+	private EventDispatcher m_dispatcher;
+	private ServiceEvent m_event;
+
+	@Setup
+	public void setUp(final Blackhole blackhole) throws Exception {
+		BundleContext context = Services.newContext();
+		ServiceRegistry registry = new ServiceRegistry(null);
+		m_dispatcher = new EventDispatcher(registry);
+		m_dispatcher.startDispatching();
+		for (int i = 0; i < listeners; i++) {
+			String filter;
+			switch (i % 4) {
+			case 0:
+				filter = "(objectClass=" + Services.CLASSES[0] + ")";
+				break;
+			case 1:
+				filter = "(&(objectClass=" + Services.CLASSES[0] + ")(group=3))";
+				break;
+			default:
+				filter = "(objectClass=" + Services.CLASSES[i % 4] + ")";
+			}
+			m_dispatcher.addListener(context, ServiceListener.class, new ServiceListener() {
+				@Override
+				public void serviceChanged(ServiceEvent event) {
+					blackhole.consume(event);
+				}
+			}, context.createFilter(filter));
+		}
+		m_event = new ServiceEvent(ServiceEvent.MODIFIED, registry.registerService(context.getBundle(), new String[] { Services.CLASSES[0] }, new Object(), Services.properties(3)).getReference());
+	}
+
+	@TearDown
+	public void tearDown() {
+		m_dispatcher.stopDispatching();
+	}
+
+	@Benchmark
+	public void fireServiceEvent() {
+		m_dispatcher.fireServiceEvent(m_event, null, null);
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.benchmarks;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+
+import de.kalpatec.pojosr.framework.felix.framework.ServiceRegistry;
+import de.kalpatec.pojosr.framework.felix.framework.capabilityset.CapabilitySet;
+import de.kalpatec.pojosr.framework.felix.framework.capabilityset.SimpleFilter;
+
+/**
+ * Parsing filters and matching them against a capability set of service
+ * references, indexed by objectClass only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FilterBenchmark {
+
+	@Param({ "100", "10000" })
+	public int size;
+
+	@Param({ "(objectClass=java.lang.Runnable)", "(&(objectClass=java.lang.Runnable)(id=40))", "(|(group=1)(group=2))", "(&(objectClass=java.lang.Comparable)(!(group>=5)))" })
+	public String filter;
+
+	private SimpleFilter m_parsed;
+	private CapabilitySet m_capSet;
+
+	@Setup
+	public void setUp() throws Exception {
+		BundleContext context = Services.newContext();
+		ServiceRegistry registry = new ServiceRegistry(null);
+		Services.register(registry, context, size);
+		m_capSet = new CapabilitySet(Arrays.asList(Constants.OBJECTCLASS), false);
+		for (Object ref : registry.getServiceReferences(null, null)) {
+			m_capSet.addCapability((BundleCapability) ref);
+		}
+		m_parsed = SimpleFilter.parse(filter);
+	}
+
+	@Benchmark
+	public SimpleFilter parse() {
+		return SimpleFilter.parse(filter);
+	}
+
+	@Benchmark
+	public Set<BundleCapability> match() {
+		return m_capSet.match(m_parsed, false);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import de.kalpatec.pojosr.framework.felix.framework.ServiceRegistry;
+
+/**
+ * Getting and releasing a service. All threads use the same service from the
+ * same bundle, so that they contend for its usage count; run with several
+ * thread counts through {@link Main}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GetServiceBenchmark {
+
+	@Param({ "10", "1000" })
+	public int size;
+
+	@Param({ "false", "true" })
+	public boolean factory;
+
+	private Bundle m_bundle;
+	private ServiceRegistry m_registry;
+	private ServiceReference<Object> m_ref;
+
+	@Setup
+	public void setUp() throws Exception {
+		BundleContext context = Services.newContext();
+		m_bundle = context.getBundle();
+		m_registry = new ServiceRegistry(null);
+		Services.register(m_registry, context, size);
+		Object service = factory ? new ServiceFactory<Object>() {
+			@Override
+			public Object getService(Bundle bundle, ServiceRegistration<Object> registration) {
+				return new Object();
+			}
+
+			@Override
+			public void ungetService(Bundle bundle, ServiceRegistration<Object> registration, Object service) {
+			}
+		} : new Object();
+		m_ref = m_registry.registerService(m_bundle, new String[] { Object.class.getName() }, service, null).getReference();
+	}
+
+	@Benchmark
+	public Object getUngetService() {
+		Object service = m_registry.getService(m_bundle, m_ref);
+		m_registry.ungetService(m_bundle, m_ref);
+		return service;
+	}
+}
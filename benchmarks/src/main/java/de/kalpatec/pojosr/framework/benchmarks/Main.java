@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks matching the given patterns once for each thread count
+ * given by the "threads" system property, a comma separated list defaulting
+ * to "1,2,4,8".
+ */
+public class Main {
+
+	public static void main(String[] args) throws Exception {
+		String[] threads = System.getProperty("threads", "1,2,4,8").split(",");
+		for (int i = 0; i < threads.length; i++) {
+			OptionsBuilder builder = new OptionsBuilder();
+			for (int j = 0; j < args.length; j++) {
+				builder.include(args[j]);
+			}
+			if (args.length == 0) {
+				builder.include(Main.class.getPackage().getName() + ".*");
+			}
+			Options options = builder.threads(Integer.parseInt(threads[i].trim())).forks(1).build();
+			new Runner(options).run();
+		}
+	}
+}
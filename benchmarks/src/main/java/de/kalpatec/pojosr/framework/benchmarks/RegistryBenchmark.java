@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import de.kalpatec.pojosr.framework.felix.framework.ServiceRegistry;
+import de.kalpatec.pojosr.framework.felix.framework.capabilityset.SimpleFilter;
+
+/**
+ * Registration and lookup of services in a registry holding a given number
+ * of services.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegistryBenchmark {
+
+	@Param({ "10", "1000", "10000" })
+	public int size;
+
+	private BundleContext m_context;
+	private ServiceRegistry m_registry;
+	private SimpleFilter m_idFilter;
+	private SimpleFilter m_groupFilter;
+
+	@Setup
+	public void setUp() throws Exception {
+		m_context = Services.newContext();
+		m_registry = new ServiceRegistry(null);
+		Services.register(m_registry, m_context, size);
+		m_idFilter = SimpleFilter.parse("(id=" + (size / 2 / Services.CLASSES.length * Services.CLASSES.length) + ")");
+		m_groupFilter = SimpleFilter.parse("(&(group>=3)(group<=5))");
+	}
+
+	@Benchmark
+	public ServiceRegistration registerUnregister() {
+		ServiceRegistration reg = m_registry.registerService(m_context.getBundle(), new String[] { Services.CLASSES[0] }, new Object(), Services.properties(-1));
+		m_registry.unregisterService(m_context.getBundle(), reg);
+		return reg;
+	}
+
+	@Benchmark
+	public List getServiceReferences() {
+		return m_registry.getServiceReferences(Services.CLASSES[0], null);
+	}
+
+	@Benchmark
+	public List getAllServiceReferences() {
+		return m_registry.getServiceReferences(null, null);
+	}
+
+	@Benchmark
+	public List getServiceReferencesById() {
+		return m_registry.getServiceReferences(Services.CLASSES[0], m_idFilter);
+	}
+
+	@Benchmark
+	public List getServiceReferencesByRange() {
+		return m_registry.getServiceReferences(null, m_groupFilter);
+	}
+
+	@Benchmark
+	public ServiceReference getServiceReference() {
+		return m_registry.getServiceReference(Services.CLASSES[0]);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.kalpatec.pojosr.framework.launch.BundleDescriptor;
+import de.kalpatec.pojosr.framework.launch.ClasspathScanner;
+import de.kalpatec.pojosr.framework.launch.ManifestCache;
+
+/**
+ * Scanning a classpath of synthetic bundle jars, each with a manifest and a
+ * few classes worth of entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScannerBenchmark {
+
+	@Param({ "10", "100" })
+	public int jars;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	@Param({ "false", "true" })
+	public boolean cached;
+
+	private File m_dir;
+	private URLClassLoader m_loader;
+	private ManifestCache m_cache;
+
+	@Setup
+	public void setUp() throws IOException {
+		m_dir = File.createTempFile("pojosr-scan", "");
+		m_dir.delete();
+		m_dir.mkdirs();
+		URL[] urls = new URL[jars];
+		for (int i = 0; i < jars; i++) {
+			File jar = new File(m_dir, "bundle" + i + ".jar");
+			writeBundle(jar, "bench.bundle" + i);
+			urls[i] = jar.toURI().toURL();
+		}
+		// No parent, so that only the synthetic jars are scanned.
+		m_loader = new URLClassLoader(urls, null);
+		m_cache = cached ? new ManifestCache(new File(m_dir, ManifestCache.CACHE_FILE_NAME)) : null;
+	}
+
+	private static void writeBundle(File file, String symbolicName) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attrs = manifest.getMainAttributes();
+		attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attrs.putValue("Bundle-ManifestVersion", "2");
+		attrs.putValue("Bundle-SymbolicName", symbolicName);
+		attrs.putValue("Bundle-Version", "1.0.0");
+		attrs.putValue("Export-Package", symbolicName + ";version=\"1.0.0\"");
+		attrs.putValue("Import-Package", "org.osgi.framework;version=\"[1.5,2)\"");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest);
+		try {
+			for (int i = 0; i < 20; i++) {
+				out.putNextEntry(new JarEntry(symbolicName.replace('.', '/') + "/Class" + i + ".class"));
+				out.write(new byte[512]);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		File[] files = m_dir.listFiles();
+		for (int i = 0; (files != null) && (i < files.length); i++) {
+			files[i].delete();
+		}
+		m_dir.delete();
+	}
+
+	@Benchmark
+	public List<BundleDescriptor> scanForBundles() throws Exception {
+		return new ClasspathScanner(parallelism, m_cache).scanForBundles(m_loader);
+	}
+}
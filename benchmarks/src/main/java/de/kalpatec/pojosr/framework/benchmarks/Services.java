@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.benchmarks;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+
+import org.osgi.framework.BundleContext;
+
+import de.kalpatec.pojosr.framework.PojoServiceRegistryFactoryImpl;
+import de.kalpatec.pojosr.framework.felix.framework.ServiceRegistry;
+
+/**
+ * Shared setup of the benchmarks: an empty registry providing a bundle and
+ * bundle context, and services spread over a few interfaces.
+ */
+final class Services {
+
+	/**
+	 * Interfaces the services are registered under, round robin.
+	 */
+	static final String[] CLASSES = { Runnable.class.getName(), Comparable.class.getName(), CharSequence.class.getName(), Cloneable.class.getName() };
+
+	private Services() {
+	}
+
+	/**
+	 * @return The context of the system bundle of a new, empty registry.
+	 */
+	static BundleContext newContext() throws Exception {
+		return new PojoServiceRegistryFactoryImpl().newPojoServiceRegistry(new HashMap<String, Object>()).getBundleContext();
+	}
+
+	/**
+	 * Registers the given number of services with an "id" and a "group"
+	 * property, the group being the id modulo 10.
+	 */
+	static void register(ServiceRegistry registry, BundleContext context, int count) {
+		for (int i = 0; i < count; i++) {
+			registry.registerService(context.getBundle(), new String[] { CLASSES[i % CLASSES.length] }, new Object(), properties(i));
+		}
+	}
+
+	static Hashtable<String, Object> properties(int id) {
+		Hashtable<String, Object> props = new Hashtable<String, Object>();
+		props.put("id", Integer.valueOf(id));
+		props.put("group", Integer.valueOf(id % 10));
+		return props;
+	}
+}
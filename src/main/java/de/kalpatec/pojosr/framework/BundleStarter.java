@@ -0,0 +1,269 @@
+/**
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ * Copyright 2013 Alexey Aksenov ezh@ezh.msk.ru
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.kalpatec.pojosr.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+import de.kalpatec.pojosr.framework.launch.PojoServiceRegistryFactory;
+
+/**
+ * Starts a list of bundles, either one after another in list order or
+ * concurrently on a thread pool. Bundles are started by increasing start level
+ * as given by the {@link PojoServiceRegistryFactory#START_LEVEL_HEADER}
+ * header. Concurrently started bundles of the same level additionally wait
+ * for the bundles exporting the packages they import.
+ */
+class BundleStarter {
+
+	private final int m_parallelism;
+	// Whether to start bundles with their activation policy.
+	private final boolean m_lazy;
+	// Start time in milliseconds by bundle, in start order.
+	private final Map<Bundle, Long> m_startTimes = Collections.synchronizedMap(new LinkedHashMap<Bundle, Long>());
+
+	BundleStarter(int parallelism, boolean lazy) {
+		m_parallelism = parallelism;
+		m_lazy = lazy;
+	}
+
+	Map<Bundle, Long> getStartTimes() {
+		synchronized (m_startTimes) {
+			return new LinkedHashMap<Bundle, Long>(m_startTimes);
+		}
+	}
+
+	void startBundles(List<Bundle> bundles) throws InterruptedException {
+		Map<Integer, List<Bundle>> levels = new TreeMap<Integer, List<Bundle>>();
+		for (Bundle bundle : bundles) {
+			if (bundle != null) {
+				Integer level = getStartLevel(bundle);
+				List<Bundle> list = levels.get(level);
+				if (list == null) {
+					list = new ArrayList<Bundle>();
+					levels.put(level, list);
+				}
+				list.add(bundle);
+			}
+		}
+
+		if (m_parallelism <= 1) {
+			for (List<Bundle> level : levels.values()) {
+				for (Bundle bundle : level) {
+					startBundle(bundle);
+				}
+			}
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(m_parallelism, new ThreadFactory() {
+			private final AtomicInteger m_count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PojoSRStarter-" + m_count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for (List<Bundle> level : levels.values()) {
+				startConcurrently(level, executor);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void startConcurrently(List<Bundle> bundles, final ExecutorService executor) throws InterruptedException {
+		// Make each bundle depend on the bundles exporting the packages it
+		// imports.
+		Map<String, List<Bundle>> exporters = new HashMap<String, List<Bundle>>();
+		for (Bundle bundle : bundles) {
+			for (String pkg : getPackages(bundle, Constants.EXPORT_PACKAGE)) {
+				List<Bundle> list = exporters.get(pkg);
+				if (list == null) {
+					list = new ArrayList<Bundle>();
+					exporters.put(pkg, list);
+				}
+				list.add(bundle);
+			}
+		}
+		final Map<Bundle, List<Bundle>> dependents = new HashMap<Bundle, List<Bundle>>();
+		final Map<Bundle, AtomicInteger> pendingDeps = new HashMap<Bundle, AtomicInteger>();
+		for (Bundle bundle : bundles) {
+			Set<Bundle> deps = new HashSet<Bundle>();
+			for (String pkg : getPackages(bundle, Constants.IMPORT_PACKAGE)) {
+				List<Bundle> list = exporters.get(pkg);
+				if (list != null) {
+					deps.addAll(list);
+				}
+			}
+			deps.remove(bundle);
+			pendingDeps.put(bundle, new AtomicInteger(deps.size()));
+			for (Bundle dep : deps) {
+				List<Bundle> list = dependents.get(dep);
+				if (list == null) {
+					list = new ArrayList<Bundle>();
+					dependents.put(dep, list);
+				}
+				list.add(bundle);
+			}
+		}
+
+		if (hasCycle(bundles, dependents, pendingDeps)) {
+			System.out.println("Package dependencies between bundles are cyclic, starting them one after another.");
+			for (Bundle bundle : bundles) {
+				startBundle(bundle);
+			}
+			return;
+		}
+
+		final CountDownLatch done = new CountDownLatch(bundles.size());
+		for (Bundle bundle : bundles) {
+			if (pendingDeps.get(bundle).get() == 0) {
+				submit(executor, bundle, dependents, pendingDeps, done);
+			}
+		}
+		done.await();
+	}
+
+	private void submit(final ExecutorService executor, final Bundle bundle, final Map<Bundle, List<Bundle>> dependents, final Map<Bundle, AtomicInteger> pendingDeps, final CountDownLatch done) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					startBundle(bundle);
+				} finally {
+					// Dependents are started even if this bundle failed, as
+					// they would be when starting one after another.
+					List<Bundle> list = dependents.get(bundle);
+					for (int i = 0; (list != null) && (i < list.size()); i++) {
+						if (pendingDeps.get(list.get(i)).decrementAndGet() == 0) {
+							submit(executor, list.get(i), dependents, pendingDeps, done);
+						}
+					}
+					done.countDown();
+				}
+			}
+		});
+	}
+
+	private static boolean hasCycle(List<Bundle> bundles, Map<Bundle, List<Bundle>> dependents, Map<Bundle, AtomicInteger> pendingDeps) {
+		Map<Bundle, Integer> counts = new HashMap<Bundle, Integer>();
+		List<Bundle> ready = new ArrayList<Bundle>();
+		for (Bundle bundle : bundles) {
+			int count = pendingDeps.get(bundle).get();
+			counts.put(bundle, count);
+			if (count == 0) {
+				ready.add(bundle);
+			}
+		}
+		int visited = 0;
+		while (!ready.isEmpty()) {
+			Bundle bundle = ready.remove(ready.size() - 1);
+			visited++;
+			List<Bundle> list = dependents.get(bundle);
+			for (int i = 0; (list != null) && (i < list.size()); i++) {
+				int count = counts.get(list.get(i)) - 1;
+				counts.put(list.get(i), count);
+				if (count == 0) {
+					ready.add(list.get(i));
+				}
+			}
+		}
+		return visited < bundles.size();
+	}
+
+	private void startBundle(Bundle bundle) {
+		long start = System.nanoTime();
+		try {
+			if (m_lazy) {
+				bundle.start(Bundle.START_ACTIVATION_POLICY);
+			} else {
+				bundle.start();
+			}
+		} catch (Throwable e) {
+			System.out.println("Unable to start bundle: " + bundle);
+			e.printStackTrace();
+		} finally {
+			m_startTimes.put(bundle, (System.nanoTime() - start) / 1000000L);
+		}
+	}
+
+	private static Integer getStartLevel(Bundle bundle) {
+		String level = getHeader(bundle, PojoServiceRegistryFactory.START_LEVEL_HEADER);
+		if (level != null) {
+			try {
+				return Integer.valueOf(level.trim());
+			} catch (NumberFormatException ex) {
+				System.out.println("Invalid start level of bundle " + bundle + ": " + level);
+			}
+		}
+		return 1;
+	}
+
+	private static String getHeader(Bundle bundle, String name) {
+		// Use the raw headers, no need to localize them.
+		return (bundle instanceof PojoSRBundle) ? ((PojoSRBundle) bundle).getRawHeaders().get(name) : (String) bundle.getHeaders().get(name);
+	}
+
+	/**
+	 * Returns the package names of an Import-Package or Export-Package
+	 * header.
+	 */
+	static Set<String> getPackages(Bundle bundle, String header) {
+		String value = getHeader(bundle, header);
+		if (value == null) {
+			return Collections.emptySet();
+		}
+		Set<String> pkgs = new HashSet<String>();
+		int start = 0;
+		boolean quoted = false;
+		for (int i = 0; i <= value.length(); i++) {
+			char c = (i < value.length()) ? value.charAt(i) : ',';
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (!quoted && ((c == ',') || (c == ';'))) {
+				// Clauses start with their package names, followed by
+				// attributes and directives.
+				String item = value.substring(start, i).trim();
+				if ((item.length() > 0) && (item.indexOf('=') < 0)) {
+					pkgs.add(item);
+				}
+				start = i + 1;
+			}
+		}
+		return pkgs;
+	}
+}
@@ -18,14 +18,44 @@ package de.kalpatec.pojosr.framework;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+/**
+ * Revision of an exploded bundle directory. The entries are served from an
+ * in-memory snapshot of the directory tree, which is rebuilt when the
+ * modification time of one of its directories changed, or while one of them
+ * was modified too recently to tell. That check runs at most once per check
+ * interval.
+ */
 class DirRevision extends Revision {
 
+	/**
+	 * Default milliseconds between checks whether the snapshot is outdated.
+	 */
+	static final long DEFAULT_CHECK_INTERVAL = 1000;
+
 	private final File m_file;
+	private final long m_checkInterval;
+	private volatile Snapshot m_snapshot = null;
+	private volatile long m_lastCheck = 0;
 
 	public DirRevision(File file) {
+		this(file, DEFAULT_CHECK_INTERVAL);
+	}
+
+	/**
+	 * @param checkInterval
+	 *            milliseconds between checks whether the snapshot is
+	 *            outdated, 0 to check on every access
+	 */
+	public DirRevision(File file, long checkInterval) {
 		m_file = file;
+		m_checkInterval = checkInterval;
 	}
 
 	@Override
@@ -33,22 +63,155 @@ class DirRevision extends Revision {
 		return m_file.lastModified();
 	}
 
+	@Override
 	public Enumeration getEntries() {
-		return new FileEntriesEnumeration(m_file);
+		return Collections.enumeration(getSnapshot().m_entries);
+	}
+
+	@Override
+	EntryIndex getEntryIndex() {
+		return getSnapshot().getEntryIndex();
 	}
 
 	@Override
 	public URL getEntry(String entryName) {
 		try {
 			if (entryName != null) {
-				File file = (new File(m_file, (entryName.startsWith("/")) ? entryName.substring(1) : entryName));
-				if (file.exists()) {
-					return file.toURL();
+				String name = (entryName.startsWith("/")) ? entryName.substring(1) : entryName;
+				Snapshot snapshot = getSnapshot();
+				if (name.length() == 0) {
+					return snapshot.m_exists ? snapshot.m_url : null;
+				}
+				// Directory URLs end with a '/', whether asked for with or
+				// without one.
+				if (!snapshot.m_names.contains(name)) {
+					name = name.endsWith("/") ? name.substring(0, name.length() - 1) : name + "/";
+					if (!snapshot.m_names.contains(name)) {
+						return null;
+					}
+				}
+				if ((name.indexOf('#') < 0) && (name.indexOf('?') < 0)) {
+					return new URL(snapshot.m_url, name);
 				}
+				return new File(m_file, name).toURL();
 			}
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 		}
 		return null;
 	}
+
+	private Snapshot getSnapshot() {
+		Snapshot snapshot = m_snapshot;
+		long now = System.currentTimeMillis();
+		if (snapshot == null) {
+			snapshot = new Snapshot(m_file);
+			m_snapshot = snapshot;
+			m_lastCheck = now;
+		} else if (now - m_lastCheck >= m_checkInterval) {
+			// Only a check restarts the interval, so that frequent access
+			// doesn't postpone it forever.
+			m_lastCheck = now;
+			if (!snapshot.isCurrent()) {
+				snapshot = new Snapshot(m_file);
+				m_snapshot = snapshot;
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Immutable listing of a directory tree with the modification times of
+	 * its directories, which change when files are added or removed.
+	 */
+	private static final class Snapshot {
+		// Modification times may only tick in whole seconds, or two on FAT,
+		// so a change made this close to the listing can go unnoticed.
+		private static final long MODIFIED_GRANULARITY = 2000;
+
+		final boolean m_exists;
+		final URL m_url;
+		// Entry names in the order of a recursive listing, directories
+		// ending with '/'.
+		final List<String> m_entries = new ArrayList<String>();
+		final Set<String> m_names = new HashSet<String>();
+		private final List<File> m_dirs = new ArrayList<File>();
+		private final List<Long> m_dirModified = new ArrayList<Long>();
+		// When the listing started.
+		private final long m_taken = System.currentTimeMillis();
+		// Whether a directory was modified too close to m_taken to tell
+		// later changes by its modification time.
+		private boolean m_unverified = false;
+		private volatile EntryIndex m_index = null;
+
+		Snapshot(File root) {
+			URL url = null;
+			try {
+				url = root.toURL();
+			} catch (MalformedURLException e) {
+				e.printStackTrace();
+			}
+			m_url = url;
+			m_exists = root.isDirectory();
+			// Also tracked if missing, so that creating it is noticed.
+			addDir(root);
+			if (m_exists) {
+				list(root, "");
+			}
+		}
+
+		private void list(File dir, String path) {
+			File[] children = dir.listFiles();
+			if (children == null) {
+				return;
+			}
+			List<File> subdirs = new ArrayList<File>();
+			List<String> subpaths = new ArrayList<String>();
+			for (int i = 0; i < children.length; i++) {
+				String name = path + children[i].getName();
+				if (children[i].isDirectory()) {
+					name = name + "/";
+					subdirs.add(children[i]);
+					subpaths.add(name);
+				}
+				m_entries.add(name);
+				m_names.add(name);
+			}
+			// Children first, then the contents of each subdirectory.
+			for (int i = 0; i < subdirs.size(); i++) {
+				addDir(subdirs.get(i));
+				list(subdirs.get(i), subpaths.get(i));
+			}
+		}
+
+		private void addDir(File dir) {
+			long modified = dir.lastModified();
+			m_dirs.add(dir);
+			m_dirModified.add(modified);
+			if (modified >= m_taken - MODIFIED_GRANULARITY) {
+				m_unverified = true;
+			}
+		}
+
+		boolean isCurrent() {
+			if (m_unverified) {
+				return false;
+			}
+			for (int i = 0; i < m_dirs.size(); i++) {
+				if (m_dirs.get(i).lastModified() != m_dirModified.get(i).longValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		EntryIndex getEntryIndex() {
+			EntryIndex index = m_index;
+			if (index == null) {
+				index = new EntryIndex(Collections.enumeration(m_entries));
+				m_index = index;
+			}
+			return index;
+		}
+	}
 }
@@ -36,10 +36,12 @@ class EntryFilterEnumeration<T> implements Enumeration<T> {
 	private final boolean m_isURLValues;
 	private final Set<String> m_dirEntries = new HashSet<String>();
 	private final List<T> m_nextEntries = new ArrayList<T>(2);
+	// Matching entry names, if served from the revision's entry index.
+	private final List<String> m_indexed;
+	private int m_indexedPos = 0;
 
 	public EntryFilterEnumeration(Revision rev, boolean includeFragments, String path, String filePattern, boolean recurse, boolean isURLValues) {
 		m_revision = rev;
-		m_enumeration = rev.getEntries();
 		m_recurse = recurse;
 		m_isURLValues = isURLValues;
 
@@ -62,6 +64,15 @@ class EntryFilterEnumeration<T> implements Enumeration<T> {
 
 		m_filePattern = SimpleFilter.parseSubstring(filePattern);
 
+		EntryIndex index = rev.getEntryIndex();
+		if (index != null) {
+			m_enumeration = null;
+			m_indexed = index.find(m_path, m_filePattern, m_recurse);
+		} else {
+			m_enumeration = rev.getEntries();
+			m_indexed = null;
+		}
+
 		findNext();
 	}
 
@@ -85,6 +96,20 @@ class EntryFilterEnumeration<T> implements Enumeration<T> {
 		// it only displays the contents of the directory specified by
 		// the path argument either recursively or not; much like using
 		// "ls -R" or "ls" to list the contents of a directory, respectively.
+		if (m_indexed != null) {
+			while ((m_nextEntries.size() == 0) && (m_indexedPos < m_indexed.size())) {
+				String entryName = m_indexed.get(m_indexedPos++);
+				if (m_isURLValues) {
+					URL entryURL = m_revision.getEntry(entryName);
+					if (entryURL != null) {
+						m_nextEntries.add((T) entryURL);
+					}
+				} else {
+					m_nextEntries.add((T) entryName);
+				}
+			}
+			return;
+		}
 		if (m_enumeration == null) {
 			return;
 		}
@@ -183,8 +208,6 @@ class EntryFilterEnumeration<T> implements Enumeration<T> {
 	}
 
 	private static String getLastPathElement(String entryName) {
-		int endIdx = (entryName.charAt(entryName.length() - 1) == '/') ? entryName.length() - 1 : entryName.length();
-		int startIdx = (entryName.charAt(entryName.length() - 1) == '/') ? entryName.lastIndexOf('/', endIdx - 1) + 1 : entryName.lastIndexOf('/', endIdx) + 1;
-		return entryName.substring(startIdx, endIdx);
+		return EntryIndex.getLastPathElement(entryName);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.kalpatec.pojosr.framework.felix.framework.capabilityset.SimpleFilter;
+
+/**
+ * Directory tree of the entries of a revision, mapping each directory to its
+ * direct children. Directories without an entry of their own are
+ * synthesized, like {@link EntryFilterEnumeration} does when walking the
+ * entries. Directory names end with a '/', the root directory is "".
+ */
+class EntryIndex {
+
+	private final Map<String, List<String>> m_children = new HashMap<String, List<String>>();
+	// All entries, including synthesized directories.
+	private final Set<String> m_names = new HashSet<String>();
+
+	EntryIndex(Enumeration<String> entries) {
+		while (entries.hasMoreElements()) {
+			String name = entries.nextElement();
+			if ((name != null) && (name.length() > 0)) {
+				add(name, m_names);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the given entry or directory exists
+	 */
+	boolean contains(String name) {
+		return m_names.contains(name);
+	}
+
+	private void add(String name, Set<String> known) {
+		if (!known.add(name)) {
+			return;
+		}
+		String parent = getParent(name);
+		if (parent.length() > 0) {
+			add(parent, known);
+		}
+		List<String> siblings = m_children.get(parent);
+		if (siblings == null) {
+			siblings = new ArrayList<String>();
+			m_children.put(parent, siblings);
+		}
+		siblings.add(name);
+	}
+
+	private static String getParent(String name) {
+		int idx = name.lastIndexOf('/', name.length() - 2);
+		return (idx < 0) ? "" : name.substring(0, idx + 1);
+	}
+
+	/**
+	 * Returns the entries below the given directory whose last path element
+	 * matches the given pattern, parents before their children.
+	 *
+	 * @param dir
+	 *            the directory, ending with '/' or "" for the root
+	 * @param pattern
+	 *            the pattern as parsed by
+	 *            {@link SimpleFilter#parseSubstring(String)}
+	 * @param recurse
+	 *            whether to include the entries of subdirectories
+	 */
+	List<String> find(String dir, List<String> pattern, boolean recurse) {
+		List<String> children = m_children.get(dir);
+		if (children == null) {
+			return Collections.emptyList();
+		}
+		List<String> result = new ArrayList<String>();
+		find(children, pattern, recurse, result);
+		return result;
+	}
+
+	private void find(List<String> entries, List<String> pattern, boolean recurse, List<String> result) {
+		for (int i = 0; i < entries.size(); i++) {
+			String name = entries.get(i);
+			if (SimpleFilter.compareSubstring(pattern, getLastPathElement(name))) {
+				result.add(name);
+			}
+			if (recurse) {
+				List<String> children = m_children.get(name);
+				if (children != null) {
+					find(children, pattern, true, result);
+				}
+			}
+		}
+	}
+
+	static String getLastPathElement(String entryName) {
+		int endIdx = (entryName.charAt(entryName.length() - 1) == '/') ? entryName.length() - 1 : entryName.length();
+		int startIdx = entryName.lastIndexOf('/', endIdx - 1) + 1;
+		return entryName.substring(startIdx, endIdx);
+	}
+}
@@ -15,25 +15,47 @@
  */
 package de.kalpatec.pojosr.framework;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
 
 class JarRevision extends Revision {
 
+	private static final JarEntry MISSING = new JarEntry("missing");
+
 	private final long m_lastModified;
 	private final JarFile m_jar;
 	private final URL m_url;
 	private final String m_urlString;
 	private final String m_prefix;
+	private final URLStreamHandler m_handler = new EntryHandler();
+	// Resolved entries by name, including the prefix, and entry URLs by
+	// name, without it.
+	private final ConcurrentMap<String, JarEntry> m_entries = new ConcurrentHashMap<String, JarEntry>();
+	private final ConcurrentMap<String, URL> m_urls = new ConcurrentHashMap<String, URL>();
+	// Whether to read stored entries from a memory-mapped view of the jar.
+	private volatile boolean m_mapped;
+	private volatile MappedJar m_mappedJar = null;
+	// The entries of a jar don't change, so the index is built once.
+	private volatile EntryIndex m_index = null;
 
 	public JarRevision(JarFile jar, URL url, String prefix, long lastModified) {
+		this(jar, url, prefix, lastModified, false);
+	}
+
+	public JarRevision(JarFile jar, URL url, String prefix, long lastModified, boolean mapped) {
 		m_jar = jar;
+		m_mapped = mapped;
 		m_url = url;
 		m_urlString = m_url.toExternalForm();
 		m_prefix = prefix;
@@ -54,6 +76,16 @@ class JarRevision extends Revision {
 		return new EntriesEnumeration(m_jar.entries(), m_prefix);
 	}
 
+	@Override
+	EntryIndex getEntryIndex() {
+		EntryIndex index = m_index;
+		if (index == null) {
+			index = new EntryIndex(getEntries());
+			m_index = index;
+		}
+		return index;
+	}
+
 	@Override
 	public URL getEntry(String entryName) {
 		try {
@@ -62,37 +94,13 @@ class JarRevision extends Revision {
 			}
 			if (entryName != null) {
 				final String target = ((entryName.startsWith("/")) ? entryName.substring(1) : entryName);
-				final JarEntry entry = m_jar.getJarEntry(((m_prefix == null) ? "" : m_prefix) + target);
-				if (entry != null) {
-					URL result = new URL(null, "jar:" + m_urlString + "!/" + ((m_prefix == null) ? "" : m_prefix) + target, new URLStreamHandler() {
-						protected URLConnection openConnection(final URL u) throws IOException {
-							return new java.net.JarURLConnection(u) {
-								public JarFile getJarFile() {
-									return m_jar;
-								}
-
-								public void connect() throws IOException {
-									// TODO Auto-generated method stub
-								}
-
-								public InputStream getInputStream() throws IOException {
-
-									String extF = u.toExternalForm();
-									JarEntry targetEntry = entry;
-									if (!extF.endsWith(target)) {
-										extF = extF.substring(extF.indexOf('!') + 2);
-										if (m_prefix != null) {
-											if (!extF.startsWith(m_prefix)) {
-												extF = m_prefix + extF;
-											}
-										}
-										targetEntry = m_jar.getJarEntry(extF);
-									}
-									return m_jar.getInputStream(targetEntry);
-								}
-							};
-						}
-					});
+				URL result = m_urls.get(target);
+				if (result != null) {
+					return result;
+				}
+				if (getJarEntry(((m_prefix == null) ? "" : m_prefix) + target) != null) {
+					result = new URL(null, "jar:" + m_urlString + "!/" + ((m_prefix == null) ? "" : m_prefix) + target, m_handler);
+					m_urls.put(target, result);
 					return result;
 				} else {
 					if (entryName.endsWith("/")) {
@@ -105,4 +113,92 @@ class JarRevision extends Revision {
 		}
 		return null;
 	}
+
+	private JarEntry getJarEntry(String name) {
+		JarEntry entry = m_entries.get(name);
+		if (entry == null) {
+			entry = m_jar.getJarEntry(name);
+			if (entry != null) {
+				m_entries.put(name, entry);
+			} else if (getEntryIndex().contains((m_prefix == null) ? name : name.substring(m_prefix.length()))) {
+				// Only remember missing entries of directories known to the
+				// index, there is no end to names which may be asked for.
+				m_entries.put(name, MISSING);
+			}
+		}
+		return (entry != MISSING) ? entry : null;
+	}
+
+	private InputStream getInputStream(String name) throws IOException {
+		JarEntry entry = getJarEntry(name);
+		if (entry == null) {
+			throw new FileNotFoundException("No entry " + name + " in " + m_urlString);
+		}
+		if (m_mapped && (entry.getMethod() == ZipEntry.STORED)) {
+			MappedJar mapped = getMappedJar();
+			InputStream input = (mapped != null) ? mapped.getInputStream(name) : null;
+			if (input != null) {
+				return input;
+			}
+		}
+		return m_jar.getInputStream(entry);
+	}
+
+	private MappedJar getMappedJar() {
+		MappedJar mapped = m_mappedJar;
+		if ((mapped == null) && m_mapped) {
+			synchronized (this) {
+				mapped = m_mappedJar;
+				if ((mapped == null) && m_mapped) {
+					try {
+						mapped = new MappedJar(new File(m_jar.getName()));
+						m_mappedJar = mapped;
+					} catch (IOException ex) {
+						// Fall back to reading through the jar file.
+						System.out.println("Unable to map jar: " + ex.getMessage());
+						m_mapped = false;
+					} catch (RuntimeException ex) {
+						// Offsets of a malformed jar may point outside of
+						// the file.
+						System.out.println("Unable to map jar: " + ex);
+						m_mapped = false;
+					}
+				}
+			}
+		}
+		return mapped;
+	}
+
+	/**
+	 * Stream handler shared by all entry URLs of the revision, reading the
+	 * entries through the already open jar file.
+	 */
+	private final class EntryHandler extends URLStreamHandler {
+		@Override
+		protected URLConnection openConnection(final URL u) throws IOException {
+			return new java.net.JarURLConnection(u) {
+				@Override
+				public JarFile getJarFile() {
+					return m_jar;
+				}
+
+				@Override
+				public void connect() throws IOException {
+					connected = true;
+				}
+
+				@Override
+				public InputStream getInputStream() throws IOException {
+					// Relative URLs resolved against an entry URL share this
+					// handler, so take the entry name from the URL.
+					String extF = u.toExternalForm();
+					extF = extF.substring(extF.indexOf("!/") + 2);
+					if ((m_prefix != null) && !extF.startsWith(m_prefix)) {
+						extF = m_prefix + extF;
+					}
+					return JarRevision.this.getInputStream(extF);
+				}
+			};
+		}
+	}
 }
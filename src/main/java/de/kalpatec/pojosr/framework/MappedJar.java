@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only memory-mapped view of a jar file serving its uncompressed
+ * (STORED) entries without going through an inflater. Compressed entries are
+ * not served, callers read those through the {@link java.util.jar.JarFile}.
+ * Zip64 archives and files larger than 2 GB are not supported.
+ */
+class MappedJar {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_SIZE = 22;
+	private static final int STORED = 0;
+
+	private final MappedByteBuffer m_buffer;
+	// Data offset and size of each stored entry by name.
+	private final Map<String, long[]> m_stored = new HashMap<String, long[]>();
+
+	MappedJar(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Jar too large to be mapped: " + file);
+			}
+			m_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the channel is closed.
+			raf.close();
+		}
+		m_buffer.order(ByteOrder.LITTLE_ENDIAN);
+		readCentralDirectory(file);
+	}
+
+	private void readCentralDirectory(File file) throws IOException {
+		ByteBuffer buffer = m_buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		// The end record is followed by a comment of up to 64k.
+		int end = -1;
+		for (int i = buffer.limit() - END_SIZE; i >= Math.max(0, buffer.limit() - END_SIZE - 0xffff); i--) {
+			if (buffer.getInt(i) == END_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			throw new IOException("Not a zip file: " + file);
+		}
+		int count = buffer.getShort(end + 10) & 0xffff;
+		long offset = buffer.getInt(end + 16) & 0xffffffffL;
+		if ((count == 0xffff) || (offset == 0xffffffffL)) {
+			throw new IOException("Zip64 jars can't be mapped: " + file);
+		}
+
+		int pos = (int) offset;
+		for (int i = 0; i < count; i++) {
+			if (buffer.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+				throw new IOException("Invalid central directory: " + file);
+			}
+			int method = buffer.getShort(pos + 10) & 0xffff;
+			long size = buffer.getInt(pos + 20) & 0xffffffffL;
+			int nameLength = buffer.getShort(pos + 28) & 0xffff;
+			int extraLength = buffer.getShort(pos + 30) & 0xffff;
+			int commentLength = buffer.getShort(pos + 32) & 0xffff;
+			long localOffset = buffer.getInt(pos + 42) & 0xffffffffL;
+			if ((method == STORED) && (size != 0xffffffffL) && (localOffset != 0xffffffffL)) {
+				byte[] name = new byte[nameLength];
+				ByteBuffer slice = buffer.duplicate();
+				slice.position(pos + CENTRAL_HEADER_SIZE);
+				slice.get(name);
+				int local = (int) localOffset;
+				if (buffer.getInt(local) == LOCAL_HEADER_SIGNATURE) {
+					// The local header may have a different extra field.
+					long data = local + LOCAL_HEADER_SIZE + (buffer.getShort(local + 26) & 0xffff) + (buffer.getShort(local + 28) & 0xffff);
+					if (data + size <= buffer.limit()) {
+						m_stored.put(new String(name, "UTF-8"), new long[] { data, size });
+					}
+				}
+			}
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+	}
+
+	/**
+	 * @return a stream of the given stored entry or null if the entry is
+	 *         missing or compressed
+	 */
+	InputStream getInputStream(String name) {
+		long[] entry = m_stored.get(name);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer buffer = m_buffer.duplicate();
+		buffer.position((int) entry[0]);
+		buffer.limit((int) (entry[0] + entry[1]));
+		return new ByteBufferInputStream(buffer);
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer m_buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			m_buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return m_buffer.hasRemaining() ? (m_buffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!m_buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, m_buffer.remaining());
+			m_buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, m_buffer.remaining()));
+			m_buffer.position(m_buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return m_buffer.remaining();
+		}
+	}
+}
@@ -18,20 +18,30 @@
 package de.kalpatec.pojosr.framework;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
@@ -40,16 +50,22 @@ import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.framework.Version;
 import org.osgi.service.packageadmin.PackageAdmin;
 import org.osgi.service.startlevel.StartLevel;
 
 import de.kalpatec.pojosr.framework.felix.framework.ServiceRegistry;
 import de.kalpatec.pojosr.framework.felix.framework.util.EventDispatcher;
+import de.kalpatec.pojosr.framework.felix.framework.util.FilterCache;
 import de.kalpatec.pojosr.framework.launch.BundleDescriptor;
 import de.kalpatec.pojosr.framework.launch.ClasspathScanner;
 import de.kalpatec.pojosr.framework.launch.PojoServiceRegistry;
 import de.kalpatec.pojosr.framework.launch.PojoServiceRegistryFactory;
+import de.kalpatec.pojosr.framework.launch.ServiceDescriptor;
+import de.kalpatec.pojosr.framework.metrics.DefaultRegistryMetrics;
+import de.kalpatec.pojosr.framework.metrics.RegistryMetrics;
+import de.kalpatec.pojosr.framework.metrics.RegistryMetricsMXBean;
 
 /**
  * Pojo Service Registry concrete implementation.
@@ -68,11 +84,19 @@ public class PojoSR implements PojoServiceRegistry {
 		public void serviceChanged(ServiceEvent event, Dictionary oldProps) {
 			dispatcher.fireServiceEvent(event, oldProps, null);
 		}
+
+		@Override
+		public void servicesRegistered(List<ServiceEvent> events) {
+			dispatcher.fireServiceEvents(events, null);
+		}
 	});
 
-	protected final EventDispatcher dispatcher = new EventDispatcher(reg);
+	protected final EventDispatcher dispatcher;
 	protected final Map<Long, Bundle> m_bundles = new HashMap<Long, Bundle>();
 	protected final Map<String, Bundle> symbolicNameToBundle = new HashMap<String, Bundle>();
+	private volatile Map<Bundle, Long> m_startTimes = Collections.emptyMap();
+	// Distinguishes the metrics MBeans of registries in the same VM.
+	private static final AtomicInteger s_metricsIds = new AtomicInteger();
 
 	// ---- Constructors -------------------------------------------------------
 
@@ -84,6 +108,7 @@ public class PojoSR implements PojoServiceRegistry {
 	 * @throws Exception
 	 */
 	public PojoSR(Map<String, Object> config) throws Exception {
+		dispatcher = createEventDispatcher(config);
 
 		final Map<String, String> headers = new HashMap<String, String>();
 		headers.put(Constants.BUNDLE_SYMBOLICNAME, "de.kalpatec.pojosr.framework");
@@ -92,7 +117,7 @@ public class PojoSR implements PojoServiceRegistry {
 		headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
 		headers.put(Constants.BUNDLE_VENDOR, "kalpatec");
 
-		final Bundle sb = new PojoSRSystemBundle(new Revision() {
+		final PojoSRSystemBundle sb = new PojoSRSystemBundle(new Revision() {
 			@Override
 			public long getLastModified() {
 				return System.currentTimeMillis();
@@ -117,10 +142,57 @@ public class PojoSR implements PojoServiceRegistry {
 		symbolicNameToBundle.put(sb.getSymbolicName(), sb);
 
 		this.config = config;
+		sb.setLazyActivation(isLazyActivation());
+		configureServiceIndices();
+		Object cacheSize = config.get(PojoServiceRegistryFactory.FILTER_CACHE_SIZE);
+		if (cacheSize != null) {
+			reg.setFilterCache(new FilterCache(Integer.parseInt(String.valueOf(cacheSize).trim())));
+		}
 		sb.start(); // create system bundle context
 		context = sb.getBundleContext();
 	}
 
+	private EventDispatcher createEventDispatcher(Map<String, Object> config) {
+		Executor executor = (Executor) config.get(PojoServiceRegistryFactory.EVENT_EXECUTOR);
+		Object capacity = config.get(PojoServiceRegistryFactory.EVENT_QUEUE_CAPACITY);
+		Object overflow = config.get(PojoServiceRegistryFactory.EVENT_QUEUE_OVERFLOW);
+		EventDispatcher dispatcher = new EventDispatcher(reg, executor, (capacity != null) ? Integer.parseInt(String.valueOf(capacity).trim()) : EventDispatcher.DEFAULT_CAPACITY, "drop".equalsIgnoreCase(String.valueOf(overflow).trim()));
+		Object threshold = config.get(PojoServiceRegistryFactory.EVENT_SLOW_THRESHOLD);
+		if (threshold != null) {
+			Object limit = config.get(PojoServiceRegistryFactory.EVENT_SLOW_LIMIT);
+			Object isolate = config.get(PojoServiceRegistryFactory.EVENT_SLOW_ISOLATE);
+			dispatcher.setSlowListenerPolicy(Long.parseLong(String.valueOf(threshold).trim()), (limit != null) ? Integer.parseInt(String.valueOf(limit).trim()) : EventDispatcher.DEFAULT_SLOW_LIMIT, "true".equalsIgnoreCase(String.valueOf(isolate).trim()));
+		}
+		Object window = config.get(PojoServiceRegistryFactory.EVENT_COALESCE_WINDOW);
+		if (window != null) {
+			dispatcher.setModifiedEventWindow(Long.parseLong(String.valueOf(window).trim()));
+		}
+		return dispatcher;
+	}
+
+	private void configureServiceIndices() {
+		Object props = config.get(PojoServiceRegistryFactory.SERVICE_INDEX_PROPERTIES);
+		if (props instanceof String) {
+			props = ((String) props).split(",");
+		}
+		if (props instanceof Object[]) {
+			props = Arrays.asList((Object[]) props);
+		}
+		if (props instanceof Collection) {
+			for (Object prop : (Collection<?>) props) {
+				String name = String.valueOf(prop).trim();
+				if (name.length() > 0) {
+					reg.addIndex(name);
+				}
+			}
+		}
+
+		Object threshold = config.get(PojoServiceRegistryFactory.SERVICE_INDEX_ADAPTIVE_THRESHOLD);
+		if (threshold != null) {
+			reg.setAdaptiveIndexThreshold(Integer.parseInt(String.valueOf(threshold).trim()));
+		}
+	}
+
 	// ---- Main method --------------------------------------------------------
 
 	public List<BundleDescriptor> getBundleDescriptors() {
@@ -219,7 +291,8 @@ public class PojoSR implements PojoServiceRegistry {
 		if (u.toExternalForm().startsWith("file:")) {
 			File root = new File(URLDecoder.decode(descriptor.getUrl().getFile(), "UTF-8"));
 			u = root.toURI().toURL();
-			rev = new DirRevision(root);
+			Object interval = config.get(PojoServiceRegistryFactory.DIR_CHECK_INTERVAL);
+			rev = new DirRevision(root, (interval != null) ? Long.parseLong(String.valueOf(interval).trim()) : DirRevision.DEFAULT_CHECK_INTERVAL);
 		} else {
 			URLConnection uc = u.openConnection();
 			if (uc instanceof JarURLConnection) {
@@ -232,7 +305,7 @@ public class PojoSR implements PojoServiceRegistry {
 					prefix = descriptor.getUrl().toExternalForm().substring(("jar:" + target + "!/").length());
 				}
 
-				rev = new JarRevision(juc.getJarFile(), juc.getJarFileURL(), prefix, juc.getLastModified());
+				rev = new JarRevision(juc.getJarFile(), juc.getJarFileURL(), prefix, juc.getLastModified(), "true".equalsIgnoreCase(String.valueOf(config.get(PojoServiceRegistryFactory.JAR_MAPPED_ENTRIES))));
 			} else {
 				rev = new URLRevision(descriptor.getUrl(), descriptor.getUrl().openConnection().getLastModified());
 			}
@@ -299,6 +372,11 @@ public class PojoSR implements PojoServiceRegistry {
 		return context.registerService(clazz, service, properties);
 	}
 
+	@Override
+	public List<ServiceRegistration<?>> registerServices(List<ServiceDescriptor> services) {
+		return (List) reg.registerServices(context.getBundle(), services);
+	}
+
 	@Override
 	public ServiceReference<?>[] getServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
 		return context.getServiceReferences(clazz, filter);
@@ -309,6 +387,11 @@ public class PojoSR implements PojoServiceRegistry {
 		return context.getServiceReference(clazz);
 	}
 
+	@Override
+	public List<ServiceReference<?>> getRankedServiceReferences(String clazz) {
+		return (List) reg.getRankedServiceReferences(clazz);
+	}
+
 	@Override
 	public Object getService(ServiceReference<?> reference) {
 		return context.getService(reference);
@@ -336,6 +419,48 @@ public class PojoSR implements PojoServiceRegistry {
 
 		// TODO replace with package org.osgi.framework.wiring
 		context.registerService(PackageAdmin.class.getName(), new PojoSRPackageAdminService(dispatcher, context, symbolicNameToBundle), null);
+
+		RegistryMetrics metrics = createMetrics();
+		if (metrics != null) {
+			reg.setMetrics(metrics);
+			dispatcher.setMetrics(metrics);
+			context.registerService(RegistryMetrics.class.getName(), metrics, null);
+			if (metrics instanceof RegistryMetricsMXBean) {
+				registerMBean(metrics);
+			}
+		}
+	}
+
+	private RegistryMetrics createMetrics() {
+		Object metrics = config.get(PojoServiceRegistryFactory.METRICS);
+		if (metrics instanceof RegistryMetrics) {
+			return (RegistryMetrics) metrics;
+		}
+		return ((metrics != null) && "true".equalsIgnoreCase(String.valueOf(metrics).trim())) ? new DefaultRegistryMetrics() : null;
+	}
+
+	private void registerMBean(RegistryMetrics metrics) {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			final ObjectName name = new ObjectName(RegistryMetricsMXBean.OBJECT_NAME + ",id=" + s_metricsIds.incrementAndGet());
+			server.registerMBean(metrics, name);
+			// Unregister along with the framework.
+			context.addBundleListener(new SynchronousBundleListener() {
+				@Override
+				public void bundleChanged(BundleEvent event) {
+					if ((event.getType() == BundleEvent.STOPPED) && (event.getBundle().getBundleId() == 0)) {
+						try {
+							server.unregisterMBean(name);
+						} catch (Exception ex) {
+							// Already unregistered.
+						}
+					}
+				}
+			});
+		} catch (Exception ex) {
+			System.out.println("Unable to register registry metrics MBean.");
+			ex.printStackTrace();
+		}
 	}
 
 	/**
@@ -353,16 +478,41 @@ public class PojoSR implements PojoServiceRegistry {
 			for (BundleDescriptor descriptor : descriptors) {
 				bundles.add(loadBundle(descriptor));
 			}
-			for (Bundle bundle : bundles) {
-				if (bundle != null) {
-					try {
-						bundle.start();
-					} catch (Throwable e) {
-						System.out.println("Unable to start bundle: " + bundle);
-						e.printStackTrace();
-					}
-				}
-			}
+			startBundles(bundles);
 		}
 	}
+
+	/**
+	 * Start the given bundles, concurrently if
+	 * {@link PojoServiceRegistryFactory#START_PARALLELISM} is greater than one.
+	 * Bundles failing to start are reported and skipped.
+	 *
+	 * @param bundles
+	 *            the bundles to start, null elements are ignored
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the bundles to start
+	 */
+	public void startBundles(List<Bundle> bundles) throws InterruptedException {
+		Object parallelism = config.get(PojoServiceRegistryFactory.START_PARALLELISM);
+		BundleStarter starter = new BundleStarter((parallelism != null) ? Integer.parseInt(String.valueOf(parallelism).trim()) : 1, isLazyActivation());
+		try {
+			starter.startBundles(bundles);
+		} finally {
+			m_startTimes = Collections.unmodifiableMap(starter.getStartTimes());
+		}
+	}
+
+	private boolean isLazyActivation() {
+		return "true".equalsIgnoreCase(String.valueOf(config.get(PojoServiceRegistryFactory.START_LAZY)).trim());
+	}
+
+	/**
+	 * Get the time each bundle took to start during the last
+	 * {@link #startBundles(List)}.
+	 *
+	 * @return start times in milliseconds by bundle, in start order
+	 */
+	public Map<Bundle, Long> getBundleStartTimes() {
+		return m_startTimes;
+	}
 }
@@ -34,6 +34,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
@@ -67,6 +68,14 @@ class PojoSRBundle implements Bundle, BundleRevisions, BundleRevision {
 	private final String m_symbolicName;
 	private volatile BundleActivator m_activator = null;
 	volatile int m_state = Bundle.RESOLVED;
+	// Set while the bundle waits in the STARTING state for its lazy
+	// activation.
+	private volatile boolean m_lazyActivationPending = false;
+	// Number of bundles of all registries waiting for their lazy
+	// activation, so that getService() only looks at the providing bundle
+	// if there are any.
+	private static final AtomicInteger s_lazyActivationsPending = new AtomicInteger();
+	private volatile boolean m_activationPolicyUsed = false;
 
 	protected volatile BundleContext m_context = null;
 	protected final Map<Long, Bundle> m_bundles;
@@ -101,21 +110,92 @@ class PojoSRBundle implements Bundle, BundleRevisions, BundleRevision {
 	@Override
 	public void start(int options) throws BundleException {
 		// TODO: lifecycle - fix this
-		start();
+		if (((options & Bundle.START_ACTIVATION_POLICY) != 0) && isLazyActivationPolicy()) {
+			startLazily();
+		} else {
+			start();
+		}
+	}
+
+	/**
+	 * Moves the bundle to the STARTING state without running its activator.
+	 * The activator runs on the first class loaded through the bundle or the
+	 * first service obtained from it, see {@link #activateLazily()}.
+	 */
+	private synchronized void startLazily() throws BundleException {
+		if (m_state != Bundle.RESOLVED) {
+			if ((m_state == Bundle.ACTIVE) || m_lazyActivationPending) {
+				return;
+			}
+			throw new BundleException("Bundle is in wrong state for start");
+		}
+		m_activationPolicyUsed = true;
+		m_state = Bundle.STARTING;
+		m_context = new PojoSRBundleContext(this, m_reg, m_dispatcher, m_bundles);
+		setLazyActivationPending(true);
+		m_dispatcher.fireBundleEvent(new BundleEvent(BundleEvent.LAZY_ACTIVATION, this));
+	}
+
+	/**
+	 * Runs the activator of a bundle waiting for its lazy activation.
+	 * Activation failures are reported, but not thrown, as the trigger is
+	 * not in a position to handle them.
+	 */
+	void activateLazily() {
+		if (m_lazyActivationPending) {
+			try {
+				start();
+			} catch (BundleException ex) {
+				System.out.println("Unable to activate bundle: " + this);
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	// Called while holding the bundle lock.
+	private void setLazyActivationPending(boolean pending) {
+		if (pending != m_lazyActivationPending) {
+			m_lazyActivationPending = pending;
+			if (pending) {
+				s_lazyActivationsPending.incrementAndGet();
+			} else {
+				s_lazyActivationsPending.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return whether any bundle waits for its lazy activation
+	 */
+	static boolean isLazyActivationPending() {
+		return s_lazyActivationsPending.get() > 0;
+	}
+
+	private boolean isLazyActivationPolicy() {
+		String policy = m_manifest.get(Constants.BUNDLE_ACTIVATIONPOLICY);
+		if (policy == null) {
+			return false;
+		}
+		int end = policy.indexOf(';');
+		return Constants.ACTIVATION_LAZY.equals(((end < 0) ? policy : policy.substring(0, end)).trim());
 	}
 
 	@Override
 	public synchronized void start() throws BundleException {
-		if (m_state != Bundle.RESOLVED) {
+		boolean lazy = m_lazyActivationPending;
+		if (!lazy && (m_state != Bundle.RESOLVED)) {
 			if (m_state == Bundle.ACTIVE) {
 				return;
 			}
 			throw new BundleException("Bundle is in wrong state for start");
 		}
 		try {
-			m_state = Bundle.STARTING;
-
-			m_context = new PojoSRBundleContext(this, m_reg, m_dispatcher, m_bundles);
+			setLazyActivationPending(false);
+			if (!lazy) {
+				m_activationPolicyUsed = false;
+				m_state = Bundle.STARTING;
+				m_context = new PojoSRBundleContext(this, m_reg, m_dispatcher, m_bundles);
+			}
 			m_dispatcher.fireBundleEvent(new BundleEvent(BundleEvent.STARTING, this));
 			if (m_activatorClass != null) {
 				m_activator = (BundleActivator) m_loader.loadClass(m_activatorClass).newInstance();
@@ -124,6 +204,12 @@ class PojoSRBundle implements Bundle, BundleRevisions, BundleRevision {
 			m_state = Bundle.ACTIVE;
 			m_dispatcher.fireBundleEvent(new BundleEvent(BundleEvent.STARTED, this));
 		} catch (Throwable ex) {
+			if (lazy) {
+				// Clean up what was registered while waiting for activation.
+				m_reg.unregisterServices(this);
+				m_dispatcher.removeListeners(m_context);
+				m_context = null;
+			}
 			m_state = Bundle.RESOLVED;
 			m_activator = null;
 			m_dispatcher.fireBundleEvent(new BundleEvent(BundleEvent.STOPPED, this));
@@ -139,6 +225,18 @@ class PojoSRBundle implements Bundle, BundleRevisions, BundleRevision {
 
 	@Override
 	public synchronized void stop() throws BundleException {
+		if (m_lazyActivationPending) {
+			// Never activated, so there is no activator to stop.
+			setLazyActivationPending(false);
+			m_state = Bundle.STOPPING;
+			m_dispatcher.fireBundleEvent(new BundleEvent(BundleEvent.STOPPING, this));
+			m_reg.unregisterServices(this);
+			m_dispatcher.removeListeners(m_context);
+			m_context = null;
+			m_state = Bundle.RESOLVED;
+			m_dispatcher.fireBundleEvent(new BundleEvent(BundleEvent.STOPPED, this));
+			return;
+		}
 		if (m_state != Bundle.ACTIVE) {
 			if (m_state == Bundle.RESOLVED) {
 				return;
@@ -218,7 +316,11 @@ class PojoSRBundle implements Bundle, BundleRevisions, BundleRevision {
 
 	@Override
 	public Dictionary<String, String> getHeaders(String locale) {
-		return new MapToDictionary(getCurrentLocalizedHeader(locale));
+		return new MapToDictionary<String, String>(getCurrentLocalizedHeader(locale));
+	}
+
+	Map<String, String> getRawHeaders() {
+		return m_manifest;
 	}
 
 	Map<String, String> getCurrentLocalizedHeader(String locale) {
@@ -363,7 +465,9 @@ class PojoSRBundle implements Bundle, BundleRevisions, BundleRevision {
 
 	@Override
 	public Class<?> loadClass(String name) throws ClassNotFoundException {
-		return m_loader.loadClass(name);
+		Class<?> clazz = m_loader.loadClass(name);
+		activateLazily();
+		return clazz;
 	}
 
 	@Override
@@ -452,7 +556,7 @@ class PojoSRBundle implements Bundle, BundleRevisions, BundleRevision {
 
 				@Override
 				public boolean isActivationPolicyUsed() {
-					return false;
+					return m_activationPolicyUsed;
 				}
 			};
 		} else if (type == BundleRevisions.class) {
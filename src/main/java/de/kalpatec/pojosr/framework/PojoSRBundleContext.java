@@ -31,7 +31,6 @@ import org.osgi.framework.BundleException;
 import org.osgi.framework.BundleListener;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkListener;
-import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
@@ -103,36 +102,19 @@ class PojoSRBundleContext implements BundleContext {
 
 	@Override
 	public ServiceReference getServiceReference(String clazz) {
-		try {
-			return getBestServiceReference(getAllServiceReferences(clazz, null));
-		} catch (InvalidSyntaxException e) {
-			throw new IllegalStateException(e);
-		}
-	}
-
-	private ServiceReference getBestServiceReference(ServiceReference[] refs) {
-		if (refs == null) {
-			return null;
-		}
-
-		if (refs.length == 1) {
-			return refs[0];
-		}
-
-		// Loop through all service references and return
-		// the "best" one according to its rank and ID.
-		ServiceReference bestRef = refs[0];
-		for (int i = 1; i < refs.length; i++) {
-			if (bestRef.compareTo(refs[i]) < 0) {
-				bestRef = refs[i];
-			}
-		}
-
-		return bestRef;
+		return m_reg.getServiceReference(clazz);
 	}
 
 	@Override
 	public Object getService(ServiceReference reference) {
+		// Services registered while their bundle waits for lazy activation
+		// activate it on first use.
+		if (PojoSRBundle.isLazyActivationPending()) {
+			Bundle provider = reference.getBundle();
+			if (provider instanceof PojoSRBundle) {
+				((PojoSRBundle) provider).activateLazily();
+			}
+		}
 		return m_reg.getService(m_bundle, reference);
 	}
 
@@ -177,11 +159,7 @@ class PojoSRBundleContext implements BundleContext {
 	public ServiceReference[] getAllServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
 		SimpleFilter simple = null;
 		if (filter != null) {
-			try {
-				simple = SimpleFilter.parse(filter);
-			} catch (Exception ex) {
-				throw new InvalidSyntaxException(ex.getMessage(), filter);
-			}
+			simple = m_reg.getFilterCache().getSimpleFilter(filter);
 		}
 		List<ServiceReference> result = m_reg.getServiceReferences(clazz, simple);
 		return result.isEmpty() ? null : result.toArray(new ServiceReference[result.size()]);
@@ -189,7 +167,7 @@ class PojoSRBundleContext implements BundleContext {
 
 	@Override
 	public Filter createFilter(String filter) throws InvalidSyntaxException {
-		return FrameworkUtil.createFilter(filter);
+		return m_reg.getFilterCache().getFilter(filter);
 	}
 
 	@Override
@@ -204,7 +182,7 @@ class PojoSRBundleContext implements BundleContext {
 
 	@Override
 	public void addServiceListener(final ServiceListener listener, String filter) throws InvalidSyntaxException {
-		m_dispatcher.addListener(this, ServiceListener.class, listener, filter == null ? null : FrameworkUtil.createFilter(filter));
+		m_dispatcher.addListener(this, ServiceListener.class, listener, filter == null ? null : m_reg.getFilterCache().getFilter(filter));
 	}
 
 	@Override
@@ -33,10 +33,21 @@ import de.kalpatec.pojosr.framework.felix.framework.util.EventDispatcher;
  */
 public class PojoSRSystemBundle extends PojoSRBundle {
 
+	// Whether to start bundles with their activation policy.
+	private volatile boolean m_lazy = false;
+
 	public PojoSRSystemBundle(Revision revision, Map<String, String> manifest, Version version, String location, ServiceRegistry reg, EventDispatcher dispatcher, String activatorClass, long id, String symbolicName, Map<Long, Bundle> bundles, ClassLoader loader) {
 		super(revision, manifest, version, location, reg, dispatcher, activatorClass, id, symbolicName, bundles, loader);
 	}
 
+	/**
+	 * Sets whether the bundles are started with their activation policy when
+	 * the system bundle starts.
+	 */
+	void setLazyActivation(boolean lazy) {
+		m_lazy = lazy;
+	}
+
 	@Override
 	public synchronized void start() throws BundleException {
 
@@ -54,7 +65,11 @@ public class PojoSRSystemBundle extends PojoSRBundle {
 			try {
 				Bundle b = m_bundles.get(Long.valueOf(i));
 				if (b != this) {
-					b.start();
+					if (m_lazy) {
+						b.start(Bundle.START_ACTIVATION_POLICY);
+					} else {
+						b.start();
+					}
 				}
 			} catch (Throwable t) {
 				System.out.println("Unable to start bundle: " + i);
@@ -30,6 +30,7 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.SynchronousBundleListener;
@@ -39,6 +40,7 @@ import org.osgi.framework.launch.FrameworkFactory;
 
 import de.kalpatec.pojosr.framework.launch.BundleDescriptor;
 import de.kalpatec.pojosr.framework.launch.ClasspathScanner;
+import de.kalpatec.pojosr.framework.launch.ManifestCache;
 import de.kalpatec.pojosr.framework.launch.PojoServiceRegistry;
 import de.kalpatec.pojosr.framework.launch.PojoServiceRegistryFactory;
 
@@ -54,23 +56,28 @@ public class PojoServiceRegistryFactoryImpl implements PojoServiceRegistryFactor
 
 	@Override
 	public Framework newFramework(Map configuration) {
-		return new FrameworkImpl((String) configuration.get("pojosr.filter"));
+		return new FrameworkImpl(configuration);
 	}
 
 	private static final class FrameworkImpl implements Framework {
 
+		private final Map m_configuration;
 		private final String m_filter;
 		private volatile Bundle m_bundle = null;
-		private volatile PojoServiceRegistry m_reg = null;
+		private volatile PojoSR m_reg = null;
 
-		public FrameworkImpl(String filter) {
-			m_filter = filter;
+		public FrameworkImpl(Map configuration) {
+			m_configuration = new HashMap(configuration);
+			m_filter = (String) configuration.get("pojosr.filter");
 		}
 
 		@Override
 		public void init() throws BundleException {
 			try {
-				m_reg = new PojoServiceRegistryFactoryImpl().newPojoServiceRegistry(new HashMap());
+				// The bundles are loaded on start.
+				Map configuration = new HashMap(m_configuration);
+				configuration.remove(BUNDLE_DESCRIPTORS);
+				m_reg = (PojoSR) new PojoServiceRegistryFactoryImpl().newPojoServiceRegistry(configuration);
 				m_bundle = m_reg.getBundleContext().getBundle();
 			} catch (Exception ex) {
 				throw new BundleException("Unable to scan classpath", ex);
@@ -90,23 +97,18 @@ public class PojoServiceRegistryFactoryImpl implements PojoServiceRegistryFactor
 		@Override
 		public void start() throws BundleException {
 			try {
-				List<BundleDescriptor> descriptors = (m_filter != null) ? new ClasspathScanner().scanForBundles(m_filter) : new ClasspathScanner().scanForBundles();
+				Object parallelism = m_configuration.get(SCAN_PARALLELISM);
+				String storage = (String) m_configuration.get(Constants.FRAMEWORK_STORAGE);
+				ManifestCache cache = (storage != null) ? ManifestCache.forStorage(storage) : ManifestCache.getDefault();
+				ClasspathScanner scanner = new ClasspathScanner((parallelism != null) ? Integer.parseInt(String.valueOf(parallelism).trim()) : 1, cache);
+				List<BundleDescriptor> descriptors = (m_filter != null) ? scanner.scanForBundles(m_filter) : scanner.scanForBundles();
 				if (descriptors != null) {
 					List<Bundle> bundles = new ArrayList<Bundle>();
 
 					for (BundleDescriptor descriptor : descriptors) {
 						bundles.add(m_reg.loadBundle(descriptor));
 					}
-					for (Bundle bundle : bundles) {
-						if (bundle != null) {
-							try {
-								bundle.start();
-							} catch (Throwable e) {
-								System.out.println("Unable to start bundle: " + bundle);
-								e.printStackTrace();
-							}
-						}
-					}
+					m_reg.startBundles(bundles);
 				}
 			} catch (Exception e) {
 				throw new BundleException("Error starting framework", e);
@@ -25,4 +25,13 @@ abstract class Revision {
 	public abstract URL getEntry(String entryName);
 
 	public abstract Enumeration<String> getEntries();
+
+	/**
+	 * Returns the directory tree of the entries, if the revision keeps one.
+	 *
+	 * @return the index or null to walk {@link #getEntries()} instead
+	 */
+	EntryIndex getEntryIndex() {
+		return null;
+	}
 }
\ No newline at end of file
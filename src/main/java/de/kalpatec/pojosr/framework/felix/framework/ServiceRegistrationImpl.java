@@ -15,14 +15,12 @@
  */
 package de.kalpatec.pojosr.framework.felix.framework;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
@@ -34,7 +32,7 @@ import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRevision;
 
 import de.kalpatec.pojosr.framework.felix.framework.util.MapToDictionary;
-import de.kalpatec.pojosr.framework.felix.framework.util.StringMap;
+import de.kalpatec.pojosr.framework.felix.framework.util.PropertyTable;
 import de.kalpatec.pojosr.framework.felix.framework.util.Util;
 
 class ServiceRegistrationImpl implements ServiceRegistration {
@@ -51,8 +49,10 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 	private volatile Object m_svcObj;
 	// Service factory interface.
 	private volatile ServiceFactory m_factory;
+	// Flag indicating that the service object was registered as a factory.
+	private final boolean m_isFactory;
 	// Associated property dictionary.
-	private volatile Map m_propMap = new StringMap(false);
+	private volatile PropertyTable m_propMap;
 	// Re-usable service reference.
 	private final ServiceReferenceImpl m_ref;
 	// Flag indicating that we are unregistering.
@@ -65,6 +65,7 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 		m_serviceId = serviceId;
 		m_svcObj = svcObj;
 		m_factory = (m_svcObj instanceof ServiceFactory) ? (ServiceFactory) m_svcObj : null;
+		m_isFactory = (m_factory != null);
 
 		initializeProperties(dict);
 
@@ -73,16 +74,20 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 		m_ref = new ServiceReferenceImpl();
 	}
 
-	protected synchronized boolean isValid() {
+	protected boolean isValid() {
 		return (m_svcObj != null);
 	}
 
+	boolean isServiceFactory() {
+		return m_isFactory;
+	}
+
 	protected synchronized void invalidate() {
 		m_svcObj = null;
 	}
 
 	@Override
-	public synchronized ServiceReference getReference() {
+	public ServiceReference getReference() {
 		// Make sure registration is valid.
 		if (!isValid()) {
 			throw new IllegalStateException("The service registration is no longer valid.");
@@ -102,6 +107,8 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 			oldProps = m_propMap;
 			// Set the properties.
 			initializeProperties(dict);
+			// Re-index the service for the new properties.
+			m_registry.servicePropertiesChanged(this, oldProps);
 		}
 		// Tell registry about it.
 		m_registry.servicePropertiesModified(this, new MapToDictionary(oldProps));
@@ -129,9 +136,9 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 		return m_propMap.get(key);
 	}
 
-	private String[] getPropertyKeys() {
-		Set s = m_propMap.keySet();
-		return (String[]) s.toArray(new String[s.size()]);
+	// The keys are shared by all callers, so they must not be modified.
+	String[] getPropertyKeys() {
+		return m_propMap.getSharedKeys();
 	}
 
 	private Bundle[] getUsingBundles() {
@@ -176,28 +183,28 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 	}
 
 	private void initializeProperties(Dictionary dict) {
-		// Create a case-insensitive map for the properties.
-		Map props = new StringMap(false);
-
+		List<String> keys = new ArrayList<String>();
+		List<Object> values = new ArrayList<Object>();
 		if (dict != null) {
-			// Make sure there are no duplicate keys.
-			Enumeration keys = dict.keys();
-			while (keys.hasMoreElements()) {
-				Object key = keys.nextElement();
-				if (props.get(key) == null) {
-					props.put(key, dict.get(key));
-				} else {
-					throw new IllegalArgumentException("Duplicate service property: " + key);
+			for (Enumeration e = dict.keys(); e.hasMoreElements();) {
+				String key = e.nextElement().toString();
+				// The framework assigned properties replace given ones.
+				if (!key.equalsIgnoreCase(Constants.OBJECTCLASS) && !key.equalsIgnoreCase(Constants.SERVICE_ID)) {
+					keys.add(key);
+					values.add(dict.get(key));
 				}
 			}
 		}
 
 		// Add the framework assigned properties.
-		props.put(Constants.OBJECTCLASS, m_classes);
-		props.put(Constants.SERVICE_ID, m_serviceId);
-
-		// Update the service property map.
-		m_propMap = props;
+		keys.add(Constants.OBJECTCLASS);
+		values.add(m_classes);
+		keys.add(Constants.SERVICE_ID);
+		values.add(m_serviceId);
+
+		// Publish the new properties at once; the table rejects duplicate
+		// keys.
+		m_propMap = new PropertyTable(keys.toArray(new String[keys.size()]), values.toArray());
 	}
 
 	private Object getFactoryUnchecked(Bundle bundle) {
@@ -233,10 +240,7 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 	//
 	class ServiceReferenceImpl implements ServiceReference, BundleCapability {
 
-		private final ServiceReferenceMap m_map;
-
 		private ServiceReferenceImpl() {
-			m_map = new ServiceReferenceMap();
 		}
 
 		ServiceRegistrationImpl getRegistration() {
@@ -263,7 +267,7 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 
 		@Override
 		public Map<String, Object> getAttributes() {
-			return m_map;
+			return m_propMap;
 		}
 
 		public List<String> getUses() {
@@ -277,7 +281,8 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 
 		@Override
 		public String[] getPropertyKeys() {
-			return ServiceRegistrationImpl.this.getPropertyKeys();
+			// Copied, callers may modify the array they get.
+			return ServiceRegistrationImpl.this.getPropertyKeys().clone();
 		}
 
 		@Override
@@ -427,67 +432,4 @@ class ServiceRegistrationImpl implements ServiceRegistration {
 			return (id.compareTo(otherId) < 0) ? 1 : -1;
 		}
 	}
-
-	private class ServiceReferenceMap implements Map {
-
-		@Override
-		public int size() {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public boolean isEmpty() {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public boolean containsKey(Object o) {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public boolean containsValue(Object o) {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public Object get(Object o) {
-			return ServiceRegistrationImpl.this.getProperty((String) o);
-		}
-
-		@Override
-		public Object put(Object k, Object v) {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public Object remove(Object o) {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public void putAll(Map map) {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public void clear() {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public Set<Object> keySet() {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public Collection<Object> values() {
-			throw new UnsupportedOperationException("Not supported yet.");
-		}
-
-		@Override
-		public Set<Entry<Object, Object>> entrySet() {
-			return Collections.EMPTY_SET;
-		}
-	}
-}
\ No newline at end of file
+}
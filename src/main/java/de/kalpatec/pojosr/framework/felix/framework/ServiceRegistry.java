@@ -16,16 +16,22 @@
 package de.kalpatec.pojosr.framework.felix.framework;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
@@ -38,21 +44,36 @@ import org.osgi.framework.wiring.BundleCapability;
 
 import de.kalpatec.pojosr.framework.felix.framework.capabilityset.CapabilitySet;
 import de.kalpatec.pojosr.framework.felix.framework.capabilityset.SimpleFilter;
+import de.kalpatec.pojosr.framework.felix.framework.util.FilterCache;
+import de.kalpatec.pojosr.framework.launch.ServiceDescriptor;
+import de.kalpatec.pojosr.framework.metrics.RegistryMetrics;
 
 public class ServiceRegistry {
 
 	private long m_currentServiceId = 1L;
 	// Maps bundle to an array of service registrations.
 	private final Map m_regsMap = Collections.synchronizedMap(new HashMap());
-	// Capability set for all service registrations.
+	// Capability set for all service registrations. Lookups read its current
+	// snapshot without holding the registry lock.
 	private final CapabilitySet m_regCapSet;
-	// Maps registration to thread to keep track when a
-	// registration is in use, which will cause other
-	// threads to wait.
-	private final Map m_lockedRegsMap = new HashMap();
-	// Maps bundle to an array of usage counts.
-	private final Map m_inUseMap = new HashMap();
+	// Maps registration to the lock of the thread using it to keep track
+	// when a registration is in use, which will cause other threads to wait
+	// for that registration only.
+	private final ConcurrentMap<ServiceRegistrationImpl, RegistrationLock> m_lockedRegsMap = new ConcurrentHashMap<ServiceRegistrationImpl, RegistrationLock>();
+	// Maps bundle to its usage counts by service reference.
+	private final ConcurrentMap<Bundle, ConcurrentMap<ServiceReference, UsageCount>> m_inUseMap = new ConcurrentHashMap<Bundle, ConcurrentMap<ServiceReference, UsageCount>>();
+	// Maps service reference to the usage counts of the bundles using it.
+	private final ConcurrentMap<ServiceReference, ConcurrentMap<Bundle, UsageCount>> m_usingMap = new ConcurrentHashMap<ServiceReference, ConcurrentMap<Bundle, UsageCount>>();
+	// Maps class name to its service references ordered by ranking, best
+	// first. The lists are immutable and replaced while holding
+	// m_rankedLock whenever services of the class change.
+	private final ConcurrentMap<String, RankedReferences> m_rankedRefs = new ConcurrentHashMap<String, RankedReferences>();
+	private final Object m_rankedLock = new Object();
 	private final ServiceRegistryCallbacks m_callbacks;
+	// Receives measurements if set.
+	private volatile RegistryMetrics m_metrics = null;
+	// Parsed filters of this registry by filter string.
+	private volatile FilterCache m_filterCache = new FilterCache(FilterCache.DEFAULT_CAPACITY);
 	private final WeakHashMap<ServiceReference, ServiceReference> m_blackList = new WeakHashMap<ServiceReference, ServiceReference>();
 	private final static Class<?>[] m_hookClasses = { org.osgi.framework.hooks.bundle.FindHook.class, org.osgi.framework.hooks.bundle.EventHook.class, org.osgi.framework.hooks.service.EventHook.class, org.osgi.framework.hooks.service.EventListenerHook.class,
 			org.osgi.framework.hooks.service.FindHook.class, org.osgi.framework.hooks.service.ListenerHook.class, org.osgi.framework.hooks.weaving.WeavingHook.class, org.osgi.framework.hooks.resolver.ResolverHookFactory.class, org.osgi.service.url.URLStreamHandlerService.class,
@@ -64,9 +85,69 @@ public class ServiceRegistry {
 
 		List indices = new ArrayList();
 		indices.add(Constants.OBJECTCLASS);
+		indices.add(Constants.SERVICE_RANKING);
 		m_regCapSet = new CapabilitySet(indices, false);
 	}
 
+	/**
+	 * Starts indexing the given service property, which speeds up lookups of
+	 * services by that property.
+	 *
+	 * @param property
+	 *            The service property to index.
+	 */
+	public void addIndex(String property) {
+		m_regCapSet.addIndex(property);
+	}
+
+	/**
+	 * Sets the metrics receiving measurements of lookups, lock waits and
+	 * registrations, or null to measure nothing.
+	 */
+	public void setMetrics(RegistryMetrics metrics) {
+		m_metrics = metrics;
+	}
+
+	public RegistryMetrics getMetrics() {
+		return m_metrics;
+	}
+
+	/**
+	 * Replaces the cache of parsed filters, e.g. to change its capacity.
+	 */
+	public void setFilterCache(FilterCache cache) {
+		m_filterCache = cache;
+	}
+
+	public FilterCache getFilterCache() {
+		return m_filterCache;
+	}
+
+	public Set<String> getIndexedProperties() {
+		return m_regCapSet.getIndexedAttributes();
+	}
+
+	/**
+	 * Sets the number of equality lookups on an unindexed service property
+	 * after which the property gets indexed automatically.
+	 *
+	 * @param threshold
+	 *            The number of lookups, or zero to disable adaptive indexing.
+	 */
+	public void setAdaptiveIndexThreshold(int threshold) {
+		m_regCapSet.setAdaptiveIndexThreshold(threshold);
+	}
+
+	// Number of property lookups served by an index.
+	public long getIndexHitCount() {
+		return m_regCapSet.getIndexHitCount();
+	}
+
+	// Number of property lookups which compared every candidate service.
+	public long getIndexScanCount() {
+		return m_regCapSet.getScanCount();
+	}
+
 	public ServiceReference[] getRegisteredServices(Bundle bundle) {
 		ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
 		if (regs != null) {
@@ -98,6 +179,12 @@ public class ServiceRegistry {
 			ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
 			m_regsMap.put(bundle, addServiceRegistration(regs, reg));
 			m_regCapSet.addCapability((BundleCapability) reg.getReference());
+			addRankedReference(reg.getReference());
+		}
+
+		RegistryMetrics metrics = m_metrics;
+		if (metrics != null) {
+			metrics.serviceRegistered(classNames);
 		}
 
 		// Notify callback objects about registered service.
@@ -107,6 +194,63 @@ public class ServiceRegistry {
 		return reg;
 	}
 
+	/**
+	 * Registers the given services of a bundle at once. The registrations
+	 * are added to the registry and its indices in a single step, then their
+	 * REGISTERED events are fired together. If a service can't be registered,
+	 * e.g. due to invalid properties, none is.
+	 *
+	 * @return the registrations in the order of the given services
+	 */
+	public List<ServiceRegistration> registerServices(Bundle bundle, List<ServiceDescriptor> services) {
+		List<ServiceRegistration> regs = new ArrayList<ServiceRegistration>(services.size());
+		List<BundleCapability> caps = new ArrayList<BundleCapability>(services.size());
+
+		synchronized (this) {
+			// Create all registrations first, so that invalid properties
+			// leave the registry unchanged.
+			for (ServiceDescriptor service : services) {
+				ServiceRegistrationImpl reg = new ServiceRegistrationImpl(this, bundle, service.getClasses(), new Long(m_currentServiceId++), service.getService(), service.getProperties());
+				regs.add(reg);
+				caps.add((BundleCapability) reg.getReference());
+			}
+
+			for (ServiceRegistration reg : regs) {
+				addHooks((String[]) reg.getReference().getProperty(Constants.OBJECTCLASS), ((ServiceRegistrationImpl) reg).getService(), reg.getReference());
+			}
+
+			ServiceRegistration[] oldRegs = (ServiceRegistration[]) m_regsMap.get(bundle);
+			int length = (oldRegs != null) ? oldRegs.length : 0;
+			ServiceRegistration[] newRegs = new ServiceRegistration[length + regs.size()];
+			if (oldRegs != null) {
+				System.arraycopy(oldRegs, 0, newRegs, 0, length);
+			}
+			for (int i = 0; i < regs.size(); i++) {
+				newRegs[length + i] = regs.get(i);
+			}
+			m_regsMap.put(bundle, newRegs);
+			m_regCapSet.addCapabilities(caps);
+			addRankedReferences(regs);
+		}
+
+		RegistryMetrics metrics = m_metrics;
+		if (metrics != null) {
+			for (ServiceDescriptor service : services) {
+				metrics.serviceRegistered(service.getClasses());
+			}
+		}
+
+		// Notify callback objects about the registered services.
+		if (m_callbacks != null) {
+			List<ServiceEvent> events = new ArrayList<ServiceEvent>(regs.size());
+			for (ServiceRegistration reg : regs) {
+				events.add(new ServiceEvent(ServiceEvent.REGISTERED, reg.getReference()));
+			}
+			m_callbacks.servicesRegistered(events);
+		}
+		return regs;
+	}
+
 	public void unregisterService(Bundle bundle, ServiceRegistration reg) {
 		// If this is a hook, it should be removed.
 		removeHook(reg.getReference());
@@ -122,6 +266,12 @@ public class ServiceRegistry {
 			ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
 			m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
 			m_regCapSet.removeCapability((BundleCapability) reg.getReference());
+			removeRankedReference(reg.getReference());
+		}
+
+		RegistryMetrics metrics = m_metrics;
+		if (metrics != null) {
+			metrics.serviceUnregistered((String[]) reg.getReference().getProperty(Constants.OBJECTCLASS));
 		}
 
 		// Notify callback objects about unregistering service.
@@ -130,14 +280,17 @@ public class ServiceRegistry {
 		}
 
 		// Now forcibly unget the service object for all stubborn clients.
-		synchronized (this) {
-			Bundle[] clients = getUsingBundles(reg.getReference());
-			for (int i = 0; (clients != null) && (i < clients.length); i++) {
-				while (ungetService(clients[i], reg.getReference()))
-					; // Keep removing until it is no longer possible
-			}
-			((ServiceRegistrationImpl) reg).invalidate();
+		// Note that we must not hold the registry lock here, since ungetting
+		// waits for other threads to release the service registration.
+		ServiceReference ref = reg.getReference();
+		Bundle[] clients = getUsingBundles(ref);
+		for (int i = 0; (clients != null) && (i < clients.length); i++) {
+			while (ungetService(clients[i], ref))
+				; // Keep removing until it is no longer possible
 		}
+		((ServiceRegistrationImpl) reg).invalidate();
+		// Nobody can get the service anymore, so drop its usage index.
+		m_usingMap.remove(ref);
 	}
 
 	/**
@@ -175,13 +328,27 @@ public class ServiceRegistry {
 		}
 	}
 
-	public synchronized List getServiceReferences(String className, SimpleFilter filter) {
+	public List getServiceReferences(String className, SimpleFilter filter) {
+		RegistryMetrics metrics = m_metrics;
+		if (metrics == null) {
+			return findServiceReferences(className, filter);
+		}
+		long start = System.nanoTime();
+		try {
+			return findServiceReferences(className, filter);
+		} finally {
+			metrics.serviceReferencesLookedUp(System.nanoTime() - start);
+		}
+	}
+
+	private List findServiceReferences(String className, SimpleFilter filter) {
+		if ((className != null) && (filter == null)) {
+			// Already known, in ranking order.
+			return new ArrayList(getRankedServiceReferences(className));
+		}
 		if ((className == null) && (filter == null)) {
 			// Return all services.
 			filter = new SimpleFilter(Constants.OBJECTCLASS, "*", SimpleFilter.PRESENT);
-		} else if ((className != null) && (filter == null)) {
-			// Return services matching the class name.
-			filter = new SimpleFilter(Constants.OBJECTCLASS, className, SimpleFilter.EQ);
 		} else if ((className != null) && (filter != null)) {
 			// Return services matching the class name and filter.
 			List filters = new ArrayList(2);
@@ -196,68 +363,175 @@ public class ServiceRegistry {
 		return new ArrayList(matches);
 	}
 
-	public synchronized ServiceReference[] getServicesInUse(Bundle bundle) {
-		UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-		if (usages != null) {
-			ServiceReference[] refs = new ServiceReference[usages.length];
-			for (int i = 0; i < refs.length; i++) {
-				refs[i] = usages[i].m_ref;
+	/**
+	 * Returns the service reference with the highest ranking and, among
+	 * equally ranked ones, the lowest service id of the given class.
+	 *
+	 * @param className
+	 *            the class name
+	 * @return the service reference or null if there is none
+	 */
+	public ServiceReference getServiceReference(String className) {
+		if (className == null) {
+			// Best of all services.
+			return getBestServiceReference(m_regCapSet.match(new SimpleFilter(Constants.OBJECTCLASS, "*", SimpleFilter.PRESENT), false));
+		}
+		RankedReferences ranked = m_rankedRefs.get(className);
+		return (ranked != null) ? ranked.m_refs[0] : null;
+	}
+
+	/**
+	 * Returns the service references of the given class ordered by ranking,
+	 * from the highest ranking and, among equally ranked ones, the lowest
+	 * service id. The returned list is an immutable snapshot kept by the
+	 * registry, so it is neither sorted nor copied per call.
+	 *
+	 * @param className
+	 *            the class name, or null for all services, which are sorted
+	 *            per call
+	 * @return the service references, empty if there are none
+	 */
+	public List<ServiceReference> getRankedServiceReferences(String className) {
+		if (className == null) {
+			List<ServiceReference> refs = new ArrayList(m_regCapSet.match(new SimpleFilter(Constants.OBJECTCLASS, "*", SimpleFilter.PRESENT), false));
+			Collections.sort(refs, Collections.reverseOrder());
+			return Collections.unmodifiableList(refs);
+		}
+		RankedReferences ranked = m_rankedRefs.get(className);
+		return (ranked != null) ? ranked.m_list : Collections.<ServiceReference> emptyList();
+	}
+
+	private static ServiceReference getBestServiceReference(Set<BundleCapability> caps) {
+		ServiceReference bestRef = null;
+		for (BundleCapability cap : caps) {
+			ServiceReference ref = (ServiceReference) cap;
+			if ((bestRef == null) || (bestRef.compareTo(ref) < 0)) {
+				bestRef = ref;
 			}
-			return refs;
 		}
-		return null;
+		return bestRef;
 	}
 
-	public <S> S getService(Bundle bundle, ServiceReference<S> ref) {
-		UsageCount usage = null;
-		Object svcObj = null;
+	private void addRankedReference(ServiceReference ref) {
+		String[] classes = (String[]) ref.getProperty(Constants.OBJECTCLASS);
+		int ranking = getRanking(ref);
+		long id = ((Long) ref.getProperty(Constants.SERVICE_ID)).longValue();
+		synchronized (m_rankedLock) {
+			for (int i = 0; (classes != null) && (i < classes.length); i++) {
+				RankedReferences ranked = m_rankedRefs.get(classes[i]);
+				m_rankedRefs.put(classes[i], ((ranked != null) ? ranked : RankedReferences.EMPTY).add(ref, ranking, id));
+			}
+		}
+	}
 
-		// Get the service registration.
-		ServiceRegistrationImpl reg = ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
+	// Adds the references of the given registrations, merging them into the
+	// ranked list of each class at once.
+	private void addRankedReferences(List<ServiceRegistration> regs) {
+		Map<String, List<ServiceReference>> byClass = new HashMap<String, List<ServiceReference>>();
+		for (ServiceRegistration reg : regs) {
+			String[] classes = (String[]) reg.getReference().getProperty(Constants.OBJECTCLASS);
+			for (int i = 0; (classes != null) && (i < classes.length); i++) {
+				List<ServiceReference> refs = byClass.get(classes[i]);
+				if (refs == null) {
+					refs = new ArrayList<ServiceReference>();
+					byClass.put(classes[i], refs);
+				}
+				refs.add(reg.getReference());
+			}
+		}
+		synchronized (m_rankedLock) {
+			for (Map.Entry<String, List<ServiceReference>> entry : byClass.entrySet()) {
+				RankedReferences ranked = m_rankedRefs.get(entry.getKey());
+				m_rankedRefs.put(entry.getKey(), ((ranked != null) ? ranked : RankedReferences.EMPTY).addAll(entry.getValue()));
+			}
+		}
+	}
 
-		synchronized (this) {
-			// First make sure that no existing operation is currently
-			// being performed by another thread on the service registration.
-			for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg)) {
-				// We don't allow cycles when we call out to the service
-				// factory.
-				if (o.equals(Thread.currentThread())) {
-					throw new ServiceException("ServiceFactory.getService() resulted in a cycle.", ServiceException.FACTORY_ERROR, null);
+	private void removeRankedReference(ServiceReference ref) {
+		String[] classes = (String[]) ref.getProperty(Constants.OBJECTCLASS);
+		synchronized (m_rankedLock) {
+			for (int i = 0; (classes != null) && (i < classes.length); i++) {
+				RankedReferences ranked = m_rankedRefs.get(classes[i]);
+				if (ranked != null) {
+					ranked = ranked.remove(ref);
+					if (ranked.m_refs.length > 0) {
+						m_rankedRefs.put(classes[i], ranked);
+					} else {
+						m_rankedRefs.remove(classes[i]);
+					}
 				}
+			}
+		}
+	}
 
-				// Otherwise, wait for it to be freed.
-				try {
-					wait();
-				} catch (InterruptedException ex) {
+	private void updateRankedReference(ServiceReference ref) {
+		String[] classes = (String[]) ref.getProperty(Constants.OBJECTCLASS);
+		int ranking = getRanking(ref);
+		long id = ((Long) ref.getProperty(Constants.SERVICE_ID)).longValue();
+		synchronized (m_rankedLock) {
+			for (int i = 0; (classes != null) && (i < classes.length); i++) {
+				RankedReferences ranked = m_rankedRefs.get(classes[i]);
+				// Skip services unregistered in the meantime.
+				RankedReferences removed = (ranked != null) ? ranked.remove(ref) : null;
+				if ((removed != null) && (removed != ranked)) {
+					m_rankedRefs.put(classes[i], removed.add(ref, ranking, id));
 				}
 			}
+		}
+	}
+
+	// Like ServiceReference.compareTo, non-Integer rankings count as zero.
+	private static int getRanking(ServiceReference ref) {
+		Object ranking = ref.getProperty(Constants.SERVICE_RANKING);
+		return (ranking instanceof Integer) ? ((Integer) ranking).intValue() : 0;
+	}
+
+	public ServiceReference[] getServicesInUse(Bundle bundle) {
+		Map<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
+		if (usages != null) {
+			ServiceReference[] refs = usages.keySet().toArray(new ServiceReference[0]);
+			return (refs.length > 0) ? refs : null;
+		}
+		return null;
+	}
 
-			// Lock the service registration.
-			m_lockedRegsMap.put(reg, Thread.currentThread());
+	public <S> S getService(Bundle bundle, ServiceReference<S> ref) {
+		// Get the service registration.
+		ServiceRegistrationImpl reg = ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-			// Make sure the service registration is still valid.
-			if (reg.isValid()) {
-				// Get the usage count, if any.
-				usage = getUsageCount(bundle, ref);
+		// A plain service object never changes, so there is no need to lock
+		// the service registration to get it.
+		if (!reg.isServiceFactory()) {
+			return (S) getSingletonService(bundle, ref, reg);
+		}
 
-				// If we don't have a usage count, then create one and
-				// since the spec says we increment usage count before
-				// actually getting the service object.
-				if (usage == null) {
-					usage = addUsageCount(bundle, ref);
-				}
+		UsageCount usage = null;
+		Object svcObj = null;
 
-				// Increment the usage count and grab the already retrieved
-				// service object, if one exists.
-				usage.m_count++;
-				svcObj = usage.m_svcObj;
-			}
+		// First make sure that no existing operation is currently
+		// being performed by another thread on the service registration
+		// and lock the service registration.
+		RegistrationLock lock = lockRegistration(reg);
+		// We don't allow cycles when we call out to the service factory.
+		if (lock == null) {
+			throw new ServiceException("ServiceFactory.getService() resulted in a cycle.", ServiceException.FACTORY_ERROR, null);
+		}
+
+		// Make sure the service registration is still valid.
+		if (reg.isValid()) {
+			// Get the usage count or create one, since the spec says we
+			// increment usage count before actually getting the service
+			// object.
+			usage = obtainUsageCount(bundle, ref);
+
+			// Increment the usage count and grab the already retrieved
+			// service object, if one exists.
+			usage.m_count.incrementAndGet();
+			svcObj = usage.m_svcObj;
 		}
 
 		// If we have a usage count, but no service object, then we haven't
-		// cached the service object yet, so we need to create one now without
-		// holding the lock, since we will potentially call out to a service
-		// factory.
+		// cached the service object yet, so we need to create one now.
 		try {
 			if ((usage != null) && (svcObj == null)) {
 				svcObj = reg.getService(bundle);
@@ -267,90 +541,146 @@ public class ServiceRegistry {
 			// cache it in the usage count. If not, we should flush the usage
 			// count. Either way, we need to unlock the service registration
 			// so that any threads waiting for it can continue.
-			synchronized (this) {
-				// Before caching the service object, double check to see if
-				// the registration is still valid, since it may have been
-				// unregistered while we didn't hold the lock.
-				if (!reg.isValid() || (svcObj == null)) {
-					flushUsageCount(bundle, ref);
-				} else {
-					usage.m_svcObj = svcObj;
-				}
-				m_lockedRegsMap.remove(reg);
-				notifyAll();
+			// Before caching the service object, double check to see if
+			// the registration is still valid, since it may have been
+			// unregistered in the meantime.
+			if (!reg.isValid() || (svcObj == null)) {
+				flushUsageCount(bundle, ref);
+			} else {
+				usage.m_svcObj = svcObj;
 			}
+			unlockRegistration(reg, lock);
 		}
 
 		return (S) svcObj;
 	}
 
-	public boolean ungetService(Bundle bundle, ServiceReference ref) {
-		UsageCount usage = null;
-		ServiceRegistrationImpl reg = ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
-
-		synchronized (this) {
-			// First make sure that no existing operation is currently
-			// being performed by another thread on the service registration.
-			for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg)) {
-				// We don't allow cycles when we call out to the service
-				// factory.
-				if (o.equals(Thread.currentThread())) {
-					throw new IllegalStateException("ServiceFactory.ungetService() resulted in a cycle.");
-				}
-
-				// Otherwise, wait for it to be freed.
-				try {
-					wait();
-				} catch (InterruptedException ex) {
+	private Object getSingletonService(Bundle bundle, ServiceReference ref, ServiceRegistrationImpl reg) {
+		while (reg.isValid()) {
+			UsageCount usage = obtainUsageCount(bundle, ref);
+			// If the usage count was flushed concurrently, then try again
+			// with a fresh one.
+			if (usage.increment()) {
+				Object svcObj = reg.getService(bundle);
+				// Double check that the registration is still valid, since
+				// it may have been unregistered in the meantime.
+				if ((svcObj == null) || !reg.isValid()) {
+					releaseSingletonService(bundle, ref, usage);
+					return null;
 				}
+				usage.m_svcObj = svcObj;
+				return svcObj;
 			}
+		}
+		return null;
+	}
 
+	public boolean ungetService(Bundle bundle, ServiceReference ref) {
+		ServiceRegistrationImpl reg = ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
+
+		if (!reg.isServiceFactory()) {
 			// Get the usage count.
-			usage = getUsageCount(bundle, ref);
+			UsageCount usage = getUsageCount(bundle, ref);
 			// If there is no cached services, then just return immediately.
-			if (usage == null) {
-				return false;
-			}
+			return (usage != null) && releaseSingletonService(bundle, ref, usage);
+		}
+
+		// First make sure that no existing operation is currently
+		// being performed by another thread on the service registration
+		// and lock the service registration.
+		RegistrationLock lock = lockRegistration(reg);
+		// We don't allow cycles when we call out to the service factory.
+		if (lock == null) {
+			throw new IllegalStateException("ServiceFactory.ungetService() resulted in a cycle.");
+		}
 
-			// Lock the service registration.
-			m_lockedRegsMap.put(reg, Thread.currentThread());
+		// Get the usage count.
+		UsageCount usage = getUsageCount(bundle, ref);
+		// If there is no cached services, then just unlock and return
+		// immediately.
+		if (usage == null) {
+			unlockRegistration(reg, lock);
+			return false;
 		}
 
 		// If usage count will go to zero, then unget the service
-		// from the registration; we do this outside the lock
-		// since this might call out to the service factory.
+		// from the registration; this might call out to the service factory.
 		try {
-			if (usage.m_count == 1) {
+			if (usage.m_count.get() == 1) {
 				// Remove reference from usages array.
-				((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration().ungetService(bundle, usage.m_svcObj);
+				reg.ungetService(bundle, usage.m_svcObj);
 			}
 		} finally {
-			// Finally, decrement usage count and flush if it goes to zero or
-			// the registration became invalid while we were not holding the
-			// lock. Either way, unlock the service registration so that any
+			// Finally, decrement usage count, which spec says should happen
+			// after ungetting the service object, and flush if it goes to
+			// zero or the registration became invalid in the meantime.
+			// Either way, unlock the service registration so that any
 			// threads waiting for it can continue.
-			synchronized (this) {
-				// Decrement usage count, which spec says should happen after
-				// ungetting the service object.
-				usage.m_count--;
-
-				// If the registration is invalid or the usage count has reached
-				// zero, then flush it.
-				if (!reg.isValid() || (usage.m_count <= 0)) {
-					usage.m_svcObj = null;
-					flushUsageCount(bundle, ref);
-				}
-
-				// Release the registration lock so any waiting threads can
-				// continue.
-				m_lockedRegsMap.remove(reg);
-				notifyAll();
+			if ((usage.m_count.decrementAndGet() <= 0) || !reg.isValid()) {
+				usage.m_svcObj = null;
+				flushUsageCount(bundle, ref);
 			}
+
+			// Release the registration lock so any waiting threads can
+			// continue.
+			unlockRegistration(reg, lock);
 		}
 
 		return true;
 	}
 
+	private boolean releaseSingletonService(Bundle bundle, ServiceReference ref, UsageCount usage) {
+		int count = usage.decrement();
+		if (count < 0) {
+			return false;
+		}
+		// Flush the usage count once nobody uses the service anymore, unless
+		// another thread got the service again in the meantime.
+		if ((count == 0) && usage.m_count.compareAndSet(0, -1)) {
+			usage.m_svcObj = null;
+			removeUsageCount(bundle, ref, usage);
+		}
+		return true;
+	}
+
+	/**
+	 * Utility method to lock the specified service registration for the
+	 * current thread. If another thread holds the lock, this waits until that
+	 * thread releases it; only threads using the same registration are
+	 * affected.
+	 *
+	 * @param reg
+	 *            The service registration to lock.
+	 * @return The lock held by the current thread or null if the current
+	 *         thread already holds the lock, i.e., there is a cycle.
+	 *
+	 */
+	private RegistrationLock lockRegistration(ServiceRegistrationImpl reg) {
+		RegistrationLock lock = new RegistrationLock();
+		boolean waited = false;
+		long start = 0;
+		for (RegistrationLock other = m_lockedRegsMap.putIfAbsent(reg, lock); (other != null); other = m_lockedRegsMap.putIfAbsent(reg, lock)) {
+			if (other.m_owner == lock.m_owner) {
+				return null;
+			}
+			if (!waited && (m_metrics != null)) {
+				waited = true;
+				start = System.nanoTime();
+			}
+			other.await();
+		}
+		RegistryMetrics metrics = m_metrics;
+		if (waited && (metrics != null)) {
+			metrics.registrationLockWaited(System.nanoTime() - start);
+		}
+		return lock;
+	}
+
+	private void unlockRegistration(ServiceRegistrationImpl reg, RegistrationLock lock) {
+		m_lockedRegsMap.remove(reg, lock);
+		lock.release();
+	}
+
 	/**
 	 * This is a utility method to release all services being used by the
 	 * specified bundle.
@@ -360,11 +690,7 @@ public class ServiceRegistry {
 	 *
 	 */
 	public void ungetServices(Bundle bundle) {
-		UsageCount[] usages;
-		synchronized (this) {
-			usages = (UsageCount[]) m_inUseMap.get(bundle);
-		}
-
+		Map<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
 		if (usages == null) {
 			return;
 		}
@@ -376,39 +702,43 @@ public class ServiceRegistry {
 
 		// Remove each service object from the
 		// service cache.
-		for (int i = 0; i < usages.length; i++) {
+		ServiceReference[] refs = usages.keySet().toArray(new ServiceReference[0]);
+		for (int i = 0; i < refs.length; i++) {
 			// Keep ungetting until all usage count is zero.
-			while (ungetService(bundle, usages[i].m_ref)) {
+			while (ungetService(bundle, refs[i])) {
 				// Empty loop body.
 			}
 		}
+
+		// Now remove the bundle itself.
+		if (usages.isEmpty()) {
+			m_inUseMap.remove(bundle, usages);
+		}
 	}
 
-	public synchronized Bundle[] getUsingBundles(ServiceReference ref) {
-		Bundle[] bundles = null;
-		for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext();) {
-			Map.Entry entry = (Map.Entry) iter.next();
-			Bundle bundle = (Bundle) entry.getKey();
-			UsageCount[] usages = (UsageCount[]) entry.getValue();
-			for (int useIdx = 0; useIdx < usages.length; useIdx++) {
-				if (usages[useIdx].m_ref.equals(ref)) {
-					// Add the bundle to the array to be returned.
-					if (bundles == null) {
-						bundles = new Bundle[] { bundle };
-					} else {
-						Bundle[] nbs = new Bundle[bundles.length + 1];
-						System.arraycopy(bundles, 0, nbs, 0, bundles.length);
-						nbs[bundles.length] = bundle;
-						bundles = nbs;
-					}
-				}
-			}
+	public Bundle[] getUsingBundles(ServiceReference ref) {
+		Map<Bundle, UsageCount> usages = m_usingMap.get(ref);
+		if (usages != null) {
+			Bundle[] bundles = usages.keySet().toArray(new Bundle[0]);
+			return (bundles.length > 0) ? bundles : null;
+		}
+		return null;
+	}
+
+	// Called by the registration while holding its lock, so the index is
+	// updated in the same order as the properties.
+	void servicePropertiesChanged(ServiceRegistrationImpl reg, Map oldProps) {
+		m_regCapSet.updateCapability((BundleCapability) reg.getReference());
+		Object ranking = reg.getReference().getProperty(Constants.SERVICE_RANKING);
+		Object oldRanking = oldProps.get(Constants.SERVICE_RANKING);
+		if ((ranking != null) ? !ranking.equals(oldRanking) : (oldRanking != null)) {
+			updateRankedReference(reg.getReference());
+			// The order of the hooks only depends on the ranking.
+			updateHook(reg.getReference());
 		}
-		return bundles;
 	}
 
 	void servicePropertiesModified(ServiceRegistration reg, Dictionary oldProps) {
-		updateHook(reg.getReference());
 		if (m_callbacks != null) {
 			m_callbacks.serviceChanged(new ServiceEvent(ServiceEvent.MODIFIED, reg.getReference()), oldProps);
 		}
@@ -458,47 +788,48 @@ public class ServiceRegistry {
 	 *
 	 */
 	private UsageCount getUsageCount(Bundle bundle, ServiceReference ref) {
-		UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-		for (int i = 0; (usages != null) && (i < usages.length); i++) {
-			if (usages[i].m_ref.equals(ref)) {
-				return usages[i];
-			}
-		}
-		return null;
+		Map<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
+		return (usages != null) ? usages.get(ref) : null;
 	}
 
 	/**
-	 * Utility method to update the specified bundle's usage count array to
-	 * include the specified service. This method should only be called to add a
-	 * usage count for a previously unreferenced service. If the service already
-	 * has a usage count, then the existing usage count counter simply needs to
-	 * be incremented.
+	 * Utility method to retrieve the specified bundle's usage count for the
+	 * specified service, creating it if the service was previously
+	 * unreferenced. If the service already has a usage count, then the
+	 * existing usage count counter simply needs to be incremented.
 	 *
 	 * @param bundle
 	 *            The bundle acquiring the service.
 	 * @param ref
 	 *            The service reference of the acquired service.
-	 * @param svcObj
-	 *            The service object of the acquired service.
+	 * @return The associated usage count.
 	 *
 	 */
-	private UsageCount addUsageCount(Bundle bundle, ServiceReference ref) {
-		UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-
-		UsageCount usage = new UsageCount();
-		usage.m_ref = ref;
-
+	private UsageCount obtainUsageCount(Bundle bundle, ServiceReference ref) {
+		ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
 		if (usages == null) {
-			usages = new UsageCount[] { usage };
-		} else {
-			UsageCount[] newUsages = new UsageCount[usages.length + 1];
-			System.arraycopy(usages, 0, newUsages, 0, usages.length);
-			newUsages[usages.length] = usage;
-			usages = newUsages;
+			usages = new ConcurrentHashMap<ServiceReference, UsageCount>();
+			ConcurrentMap<ServiceReference, UsageCount> existing = m_inUseMap.putIfAbsent(bundle, usages);
+			usages = (existing != null) ? existing : usages;
 		}
 
-		m_inUseMap.put(bundle, usages);
+		UsageCount usage = usages.get(ref);
+		if (usage == null) {
+			usage = new UsageCount(ref);
+			UsageCount existing = usages.putIfAbsent(ref, usage);
+			if (existing != null) {
+				return existing;
+			}
 
+			// Index the new usage count by service reference too.
+			ConcurrentMap<Bundle, UsageCount> users = m_usingMap.get(ref);
+			if (users == null) {
+				users = new ConcurrentHashMap<Bundle, UsageCount>();
+				ConcurrentMap<Bundle, UsageCount> existingUsers = m_usingMap.putIfAbsent(ref, users);
+				users = (existingUsers != null) ? existingUsers : users;
+			}
+			users.put(bundle, usage);
+		}
 		return usage;
 	}
 
@@ -507,9 +838,7 @@ public class ServiceRegistry {
 	 * specified service reference. This should be called to completely remove
 	 * the associated usage count object for the specified service reference. If
 	 * the goal is to simply decrement the usage, then get the usage count and
-	 * decrement its counter. This method will also remove the specified bundle
-	 * from the "in use" map if it has no more usage counts after removing the
-	 * usage count for the specified service reference.
+	 * decrement its counter.
 	 *
 	 * @param bundle
 	 *            The bundle whose usage count should be removed.
@@ -518,28 +847,22 @@ public class ServiceRegistry {
 	 *
 	 */
 	private void flushUsageCount(Bundle bundle, ServiceReference ref) {
-		UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-		for (int i = 0; (usages != null) && (i < usages.length); i++) {
-			if (usages[i].m_ref.equals(ref)) {
-				// If this is the only usage, then point to empty list.
-				if ((usages.length - 1) == 0) {
-					usages = null;
-				} // Otherwise, we need to do some array copying.
-				else {
-					UsageCount[] newUsages = new UsageCount[usages.length - 1];
-					System.arraycopy(usages, 0, newUsages, 0, i);
-					if (i < newUsages.length) {
-						System.arraycopy(usages, i + 1, newUsages, i, newUsages.length - i);
-					}
-					usages = newUsages;
-				}
-			}
+		UsageCount usage = getUsageCount(bundle, ref);
+		if (usage != null) {
+			usage.m_count.set(-1);
+			removeUsageCount(bundle, ref, usage);
 		}
+	}
 
-		if (usages != null) {
-			m_inUseMap.put(bundle, usages);
-		} else {
-			m_inUseMap.remove(bundle);
+	private void removeUsageCount(Bundle bundle, ServiceReference ref, UsageCount usage) {
+		ConcurrentMap<ServiceReference, UsageCount> usages = m_inUseMap.get(bundle);
+		if ((usages != null) && usages.remove(ref, usage)) {
+			ConcurrentMap<Bundle, UsageCount> users = m_usingMap.get(ref);
+			if ((users != null) && users.remove(bundle, usage) && users.isEmpty()
+					&& !((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration().isValid()) {
+				// Clean up after late users of an unregistered service.
+				m_usingMap.remove(ref, users);
+			}
 		}
 	}
 
@@ -648,15 +971,181 @@ public class ServiceRegistry {
 
 	}
 
+	private static class RegistrationLock {
+
+		final Thread m_owner = Thread.currentThread();
+		private final CountDownLatch m_latch = new CountDownLatch(1);
+
+		void await() {
+			// Wait for the owner to release the lock.
+			while (m_latch.getCount() > 0) {
+				try {
+					m_latch.await();
+				} catch (InterruptedException ex) {
+				}
+			}
+		}
+
+		void release() {
+			m_latch.countDown();
+		}
+	}
+
 	private static class UsageCount {
 
-		public int m_count = 0;
-		public ServiceReference m_ref = null;
-		public Object m_svcObj = null;
+		final ServiceReference m_ref;
+		// A negative count marks a flushed usage count, which must not be
+		// used anymore.
+		final AtomicInteger m_count = new AtomicInteger();
+		volatile Object m_svcObj = null;
+
+		UsageCount(ServiceReference ref) {
+			m_ref = ref;
+		}
+
+		boolean increment() {
+			for (;;) {
+				int count = m_count.get();
+				if (count < 0) {
+					return false;
+				}
+				if (m_count.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		int decrement() {
+			for (;;) {
+				int count = m_count.get();
+				if (count <= 0) {
+					return -1;
+				}
+				if (m_count.compareAndSet(count, count - 1)) {
+					return count - 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Immutable list of service references ordered by ranking, with the
+	 * ranking and id each reference had when it was added, so that the order
+	 * does not depend on concurrently changing properties.
+	 */
+	private static final class RankedReferences {
+		static final RankedReferences EMPTY = new RankedReferences(new ServiceReference[0], new int[0], new long[0]);
+
+		final ServiceReference[] m_refs;
+		final List<ServiceReference> m_list;
+		private final int[] m_rankings;
+		private final long[] m_ids;
+
+		private RankedReferences(ServiceReference[] refs, int[] rankings, long[] ids) {
+			m_refs = refs;
+			m_list = Collections.unmodifiableList(Arrays.asList(refs));
+			m_rankings = rankings;
+			m_ids = ids;
+		}
+
+		RankedReferences add(ServiceReference ref, int ranking, long id) {
+			// Binary search for the first entry ranked below the new one.
+			int low = 0;
+			int high = m_refs.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if ((m_rankings[mid] > ranking) || ((m_rankings[mid] == ranking) && (m_ids[mid] < id))) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			int length = m_refs.length;
+			ServiceReference[] refs = new ServiceReference[length + 1];
+			int[] rankings = new int[length + 1];
+			long[] ids = new long[length + 1];
+			System.arraycopy(m_refs, 0, refs, 0, low);
+			System.arraycopy(m_rankings, 0, rankings, 0, low);
+			System.arraycopy(m_ids, 0, ids, 0, low);
+			refs[low] = ref;
+			rankings[low] = ranking;
+			ids[low] = id;
+			System.arraycopy(m_refs, low, refs, low + 1, length - low);
+			System.arraycopy(m_rankings, low, rankings, low + 1, length - low);
+			System.arraycopy(m_ids, low, ids, low + 1, length - low);
+			return new RankedReferences(refs, rankings, ids);
+		}
+
+		RankedReferences addAll(List<ServiceReference> added) {
+			if (added.size() == 1) {
+				ServiceReference ref = added.get(0);
+				return add(ref, getRanking(ref), ((Long) ref.getProperty(Constants.SERVICE_ID)).longValue());
+			}
+			int length = m_refs.length + added.size();
+			final ServiceReference[] refs = new ServiceReference[length];
+			final int[] rankings = new int[length];
+			final long[] ids = new long[length];
+			System.arraycopy(m_refs, 0, refs, 0, m_refs.length);
+			System.arraycopy(m_rankings, 0, rankings, 0, m_refs.length);
+			System.arraycopy(m_ids, 0, ids, 0, m_refs.length);
+			for (int i = m_refs.length; i < length; i++) {
+				refs[i] = added.get(i - m_refs.length);
+				rankings[i] = getRanking(refs[i]);
+				ids[i] = ((Long) refs[i].getProperty(Constants.SERVICE_ID)).longValue();
+			}
+			// Sort once rather than inserting one after another.
+			Integer[] order = new Integer[length];
+			for (int i = 0; i < length; i++) {
+				order[i] = Integer.valueOf(i);
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					if (rankings[a] != rankings[b]) {
+						return (rankings[a] > rankings[b]) ? -1 : 1;
+					}
+					return (ids[a] < ids[b]) ? -1 : ((ids[a] == ids[b]) ? 0 : 1);
+				}
+			});
+			ServiceReference[] sortedRefs = new ServiceReference[length];
+			int[] sortedRankings = new int[length];
+			long[] sortedIds = new long[length];
+			for (int i = 0; i < length; i++) {
+				sortedRefs[i] = refs[order[i]];
+				sortedRankings[i] = rankings[order[i]];
+				sortedIds[i] = ids[order[i]];
+			}
+			return new RankedReferences(sortedRefs, sortedRankings, sortedIds);
+		}
+
+		// Returns this instance if the reference is not contained.
+		RankedReferences remove(ServiceReference ref) {
+			for (int i = 0; i < m_refs.length; i++) {
+				if (m_refs[i] == ref) {
+					int length = m_refs.length - 1;
+					ServiceReference[] refs = new ServiceReference[length];
+					int[] rankings = new int[length];
+					long[] ids = new long[length];
+					System.arraycopy(m_refs, 0, refs, 0, i);
+					System.arraycopy(m_rankings, 0, rankings, 0, i);
+					System.arraycopy(m_ids, 0, ids, 0, i);
+					System.arraycopy(m_refs, i + 1, refs, i, length - i);
+					System.arraycopy(m_rankings, i + 1, rankings, i, length - i);
+					System.arraycopy(m_ids, i + 1, ids, i, length - i);
+					return new RankedReferences(refs, rankings, ids);
+				}
+			}
+			return this;
+		}
 	}
 
 	public interface ServiceRegistryCallbacks {
 
 		void serviceChanged(ServiceEvent event, Dictionary oldProps);
+
+		/**
+		 * Called with the REGISTERED events of services registered at once.
+		 */
+		void servicesRegistered(List<ServiceEvent> events);
 	}
 }
\ No newline at end of file
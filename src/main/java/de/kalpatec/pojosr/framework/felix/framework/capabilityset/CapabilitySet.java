@@ -16,9 +16,12 @@
 package de.kalpatec.pojosr.framework.felix.framework.capabilityset;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -27,100 +30,242 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.osgi.framework.Version;
 import org.osgi.framework.wiring.BundleCapability;
 
 import de.kalpatec.pojosr.framework.felix.framework.util.StringComparator;
 
 public class CapabilitySet {
 
-	private final Map<String, Map<Object, Set<BundleCapability>>> m_indices;
-	private final Set<BundleCapability> m_capSet = new HashSet<BundleCapability>();
+	private final boolean m_caseSensitive;
+	// Immutable view of the capabilities and their indices. Readers use the
+	// current snapshot without locking, while writers serialize on this
+	// object and publish a modified copy, which shares all unchanged parts
+	// with the current one.
+	private volatile Snapshot m_snapshot;
+	// Number of EQ lookups on an unindexed attribute after which the
+	// attribute gets indexed, or zero to disable adaptive indexing.
+	private volatile int m_adaptiveThreshold = 0;
+	// Counts EQ lookups by unindexed attribute for adaptive indexing.
+	private final ConcurrentMap<String, AtomicInteger> m_eqScans = new ConcurrentHashMap<String, AtomicInteger>();
+	// Number of attribute lookups served by an index.
+	private final AtomicLong m_indexHits = new AtomicLong();
+	// Number of attribute lookups which compared each capability.
+	private final AtomicLong m_scans = new AtomicLong();
+
+	// Maximum number of attributes counted for adaptive indexing.
+	private static final int MAX_ADAPTIVE_CANDIDATES = 64;
 
 	public CapabilitySet(List<String> indexProps, boolean caseSensitive) {
-		m_indices = (caseSensitive) ? new TreeMap<String, Map<Object, Set<BundleCapability>>>() : new TreeMap<String, Map<Object, Set<BundleCapability>>>(new StringComparator(false));
+		m_caseSensitive = caseSensitive;
+		Map<String, Index> indices = createIndexMap();
 		for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++) {
-			m_indices.put(indexProps.get(i), new HashMap<Object, Set<BundleCapability>>());
+			indices.put(indexProps.get(i), new Index());
 		}
+		m_snapshot = new Snapshot(SharedHashSet.<BundleCapability> empty(), indices);
 	}
 
-	public void addCapability(BundleCapability cap) {
-		m_capSet.add(cap);
+	private Map<String, Index> createIndexMap() {
+		return (m_caseSensitive) ? new TreeMap<String, Index>() : new TreeMap<String, Index>(new StringComparator(false));
+	}
+
+	public synchronized void addCapability(BundleCapability cap) {
+		Snapshot snapshot = m_snapshot;
+		if (snapshot.m_capSet.contains(cap)) {
+			return;
+		}
 
-		// Index capability.
-		for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet()) {
+		SharedHashSet<BundleCapability> capSet = snapshot.m_capSet.with(cap);
+
+		// Index capability into copies of the affected indices.
+		Map<String, Index> indices = createIndexMap();
+		for (Entry<String, Index> entry : snapshot.m_indices.entrySet()) {
+			Index index = entry.getValue();
 			Object value = cap.getAttributes().get(entry.getKey());
 			if (value != null) {
-				if (value.getClass().isArray()) {
-					value = convertArrayToList(value);
-				}
+				index = new Index(index);
+				index.add(cap, value);
+			}
+			indices.put(entry.getKey(), index);
+		}
 
-				Map<Object, Set<BundleCapability>> index = entry.getValue();
+		m_snapshot = new Snapshot(capSet, indices);
+	}
 
-				if (value instanceof Collection) {
-					Collection c = (Collection) value;
-					for (Object o : c) {
-						indexCapability(index, cap, o);
+	/**
+	 * Adds the given capabilities at once, copying each affected index only
+	 * once and publishing a single snapshot rather than one per capability.
+	 */
+	public synchronized void addCapabilities(Collection<? extends BundleCapability> caps) {
+		Snapshot snapshot = m_snapshot;
+		SharedHashSet<BundleCapability> capSet = snapshot.m_capSet;
+		// Copies of the affected indices, by attribute.
+		Map<String, Index> copies = new HashMap<String, Index>();
+		for (BundleCapability cap : caps) {
+			if (capSet.contains(cap)) {
+				continue;
+			}
+			capSet = capSet.with(cap);
+			for (Entry<String, Index> entry : snapshot.m_indices.entrySet()) {
+				Object value = cap.getAttributes().get(entry.getKey());
+				if (value != null) {
+					Index index = copies.get(entry.getKey());
+					if (index == null) {
+						index = new Index(entry.getValue());
+						copies.put(entry.getKey(), index);
 					}
-				} else {
-					indexCapability(index, cap, value);
+					index.add(cap, value);
 				}
 			}
 		}
-	}
+		if (capSet.size() == snapshot.m_capSet.size()) {
+			return;
+		}
 
-	private void indexCapability(Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object capValue) {
-		Set<BundleCapability> caps = index.get(capValue);
-		if (caps == null) {
-			caps = new HashSet<BundleCapability>();
-			index.put(capValue, caps);
+		Map<String, Index> indices = createIndexMap();
+		for (Entry<String, Index> entry : snapshot.m_indices.entrySet()) {
+			Index copy = copies.get(entry.getKey());
+			indices.put(entry.getKey(), (copy != null) ? copy : entry.getValue());
 		}
-		caps.add(cap);
+
+		m_snapshot = new Snapshot(capSet, indices);
 	}
 
-	public void removeCapability(BundleCapability cap) {
-		if (m_capSet.remove(cap)) {
-			for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet()) {
-				Object value = cap.getAttributes().get(entry.getKey());
-				if (value != null) {
-					if (value.getClass().isArray()) {
-						value = convertArrayToList(value);
-					}
+	public synchronized void removeCapability(BundleCapability cap) {
+		Snapshot snapshot = m_snapshot;
+		if (!snapshot.m_capSet.contains(cap)) {
+			return;
+		}
 
-					Map<Object, Set<BundleCapability>> index = entry.getValue();
+		SharedHashSet<BundleCapability> capSet = snapshot.m_capSet.without(cap);
 
-					if (value instanceof Collection) {
-						Collection c = (Collection) value;
-						for (Object o : c) {
-							deindexCapability(index, cap, o);
-						}
-					} else {
-						deindexCapability(index, cap, value);
-					}
+		// Remove the capability by the values it was indexed by, its
+		// attributes may have changed since.
+		Map<String, Index> indices = createIndexMap();
+		for (Entry<String, Index> entry : snapshot.m_indices.entrySet()) {
+			Index index = entry.getValue();
+			if (index.contains(cap)) {
+				index = new Index(index);
+				index.remove(cap);
+			}
+			indices.put(entry.getKey(), index);
+		}
+
+		m_snapshot = new Snapshot(capSet, indices);
+	}
+
+	/**
+	 * Re-indexes a capability whose attributes have changed. Must be called
+	 * after the attributes of the capability have been changed. Does nothing
+	 * if the capability is not part of this set.
+	 *
+	 * @param cap
+	 *            The modified capability.
+	 */
+	public synchronized void updateCapability(BundleCapability cap) {
+		Snapshot snapshot = m_snapshot;
+		if (!snapshot.m_capSet.contains(cap)) {
+			return;
+		}
+
+		boolean modified = false;
+		Map<String, Index> indices = createIndexMap();
+		for (Entry<String, Index> entry : snapshot.m_indices.entrySet()) {
+			Index index = entry.getValue();
+			Object oldValue = index.getValue(cap);
+			Object value = cap.getAttributes().get(entry.getKey());
+			if ((value != null) && value.getClass().isArray()) {
+				value = convertArrayToList(value);
+			}
+			if ((oldValue != value) && ((oldValue == null) || !oldValue.equals(value))) {
+				index = new Index(index);
+				if (oldValue != null) {
+					index.remove(cap);
+				}
+				if (value != null) {
+					index.add(cap, value);
 				}
+				modified = true;
 			}
+			indices.put(entry.getKey(), index);
+		}
+
+		if (modified) {
+			m_snapshot = new Snapshot(snapshot.m_capSet, indices);
 		}
 	}
 
-	private void deindexCapability(Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object value) {
-		Set<BundleCapability> caps = index.get(value);
-		if (caps != null) {
-			caps.remove(cap);
-			if (caps.isEmpty()) {
-				index.remove(value);
+	/**
+	 * Starts indexing the given attribute of all capabilities in this set.
+	 *
+	 * @param attr
+	 *            The attribute to index.
+	 * @return false if the attribute was already indexed.
+	 */
+	public synchronized boolean addIndex(String attr) {
+		Snapshot snapshot = m_snapshot;
+		if (snapshot.m_indices.containsKey(attr)) {
+			return false;
+		}
+
+		Index index = new Index();
+		for (BundleCapability cap : snapshot.m_capSet) {
+			Object value = cap.getAttributes().get(attr);
+			if (value != null) {
+				index.add(cap, value);
 			}
 		}
+
+		Map<String, Index> indices = createIndexMap();
+		indices.putAll(snapshot.m_indices);
+		indices.put(attr, index);
+		m_snapshot = new Snapshot(snapshot.m_capSet, indices);
+		return true;
+	}
+
+	public Set<String> getIndexedAttributes() {
+		return Collections.unmodifiableSet(m_snapshot.m_indices.keySet());
+	}
+
+	/**
+	 * Enables adaptive indexing, which indexes any attribute once it has been
+	 * looked up for equality the given number of times.
+	 *
+	 * @param threshold
+	 *            The number of lookups, or zero to disable adaptive indexing.
+	 */
+	public void setAdaptiveIndexThreshold(int threshold) {
+		m_adaptiveThreshold = Math.max(threshold, 0);
+		m_eqScans.clear();
+	}
+
+	public int getAdaptiveIndexThreshold() {
+		return m_adaptiveThreshold;
+	}
+
+	public long getIndexHitCount() {
+		return m_indexHits.get();
+	}
+
+	public long getScanCount() {
+		return m_scans.get();
 	}
 
 	public Set<BundleCapability> match(SimpleFilter sf, boolean obeyMandatory) {
-		Set<BundleCapability> matches = match(m_capSet, sf);
+		Snapshot snapshot = m_snapshot;
+		Set<BundleCapability> matches = match(snapshot, snapshot.m_capSet, sf);
 		return matches;
 		/*
 		 * return (obeyMandatory) ? matchMandatory(matches, sf) : matches;
 		 */
 	}
 
-	private Set<BundleCapability> match(Set<BundleCapability> caps, SimpleFilter sf) {
+	private Set<BundleCapability> match(Snapshot snapshot, Set<BundleCapability> caps, SimpleFilter sf) {
 		Set<BundleCapability> matches = new HashSet<BundleCapability>();
 
 		if (sf.getOperation() == SimpleFilter.MATCH_ALL) {
@@ -132,7 +277,7 @@ public class CapabilitySet {
 			// remaining capabilities.
 			List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
 			for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++) {
-				matches = match(caps, sfs.get(i));
+				matches = match(snapshot, caps, sfs.get(i));
 				caps = matches;
 			}
 		} else if (sf.getOperation() == SimpleFilter.OR) {
@@ -140,7 +285,7 @@ public class CapabilitySet {
 			// For OR we calculate the union of each subfilter.
 			List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
 			for (int i = 0; i < sfs.size(); i++) {
-				matches.addAll(match(caps, sfs.get(i)));
+				matches.addAll(match(snapshot, caps, sfs.get(i)));
 			}
 		} else if (sf.getOperation() == SimpleFilter.NOT) {
 			// Evaluate each subfilter against the remaining capabilities.
@@ -148,24 +293,23 @@ public class CapabilitySet {
 			matches.addAll(caps);
 			List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
 			for (int i = 0; i < sfs.size(); i++) {
-				matches.removeAll(match(caps, sfs.get(i)));
+				matches.removeAll(match(snapshot, caps, sfs.get(i)));
 			}
 		} else {
-			Map<Object, Set<BundleCapability>> index = m_indices.get(sf.getName());
-			if ((sf.getOperation() == SimpleFilter.EQ) && (index != null)) {
-				Set<BundleCapability> existingCaps = index.get(sf.getValue());
-				if (existingCaps != null) {
-					matches.addAll(existingCaps);
-					matches.retainAll(caps);
-				}
+			Index index = snapshot.m_indices.get(sf.getName());
+			if ((index != null) && index.match(sf, matches)) {
+				m_indexHits.incrementAndGet();
+				matches.retainAll(caps);
 			} else {
+				m_scans.incrementAndGet();
+				if ((index == null) && (sf.getOperation() == SimpleFilter.EQ) && (m_adaptiveThreshold > 0)) {
+					countEqScan(sf.getName());
+				}
+				CompiledFilter cf = sf.compile();
 				for (Iterator<BundleCapability> it = caps.iterator(); it.hasNext();) {
 					BundleCapability cap = it.next();
-					Object lhs = cap.getAttributes().get(sf.getName());
-					if (lhs != null) {
-						if (compare(lhs, sf.getValue(), sf.getOperation())) {
-							matches.add(cap);
-						}
+					if (cf.matches(cap.getAttributes())) {
+						matches.add(cap);
 					}
 				}
 			}
@@ -174,6 +318,24 @@ public class CapabilitySet {
 		return matches;
 	}
 
+	private void countEqScan(String attr) {
+		String key = (m_caseSensitive) ? attr : attr.toLowerCase();
+		AtomicInteger count = m_eqScans.get(key);
+		if (count == null) {
+			// Don't let arbitrary attribute names grow the map unbounded.
+			if (m_eqScans.size() >= MAX_ADAPTIVE_CANDIDATES) {
+				return;
+			}
+			count = new AtomicInteger();
+			AtomicInteger existing = m_eqScans.putIfAbsent(key, count);
+			count = (existing != null) ? existing : count;
+		}
+		if (count.incrementAndGet() == m_adaptiveThreshold) {
+			addIndex(attr);
+			m_eqScans.remove(key);
+		}
+	}
+
 	/*
 	 * public static boolean matches(BundleCapability cap, SimpleFilter sf) {
 	 * return matchesInternal(cap, sf) && matchMandatory(cap, sf); }
@@ -208,11 +370,7 @@ public class CapabilitySet {
 				matched = !(matchesInternal(cap, sfs.get(i)));
 			}
 		} else {
-			matched = false;
-			Object lhs = cap.getAttributes().get(sf.getName());
-			if (lhs != null) {
-				matched = compare(lhs, sf.getValue(), sf.getOperation());
-			}
+			matched = sf.compile().matches(cap.getAttributes());
 		}
 
 		return matched;
@@ -240,183 +398,224 @@ public class CapabilitySet {
 	 * (SimpleFilter) list.get(i); if ((sf2.getName() != null) &&
 	 * sf2.getName().equals(attrName)) { return true; } } } return false; }
 	 */
-	private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
-
-	private static boolean compare(Object lhs, Object rhsUnknown, int op) {
-		if (lhs == null) {
-			return false;
+	/**
+	 * This is an ugly utility method to convert an array of primitives to an
+	 * array of primitive wrapper objects. This method simplifies processing
+	 * LDAP filters since the special case of primitive arrays can be ignored.
+	 *
+	 * @param array
+	 *            An array of primitive types.
+	 * @return An corresponding array using pritive wrapper objects.
+	 *
+	 */
+	private static List convertArrayToList(Object array) {
+		int len = Array.getLength(array);
+		List list = new ArrayList(len);
+		for (int i = 0; i < len; i++) {
+			list.add(Array.get(array, i));
 		}
+		return list;
+	}
 
-		// If this is a PRESENT operation, then just return true immediately
-		// since we wouldn't be here if the attribute wasn't present.
-		if (op == SimpleFilter.PRESENT) {
-			return true;
-		}
+	private static class Snapshot {
 
-		// If the type is comparable, then we can just return the
-		// result immediately.
-		if (lhs instanceof Comparable) {
-			// Spec says SUBSTRING is false for all types other than string.
-			if ((op == SimpleFilter.SUBSTRING) && !(lhs instanceof String)) {
-				return false;
-			}
+		final SharedHashSet<BundleCapability> m_capSet;
+		final Map<String, Index> m_indices;
 
-			Object rhs;
-			if (op == SimpleFilter.SUBSTRING) {
-				rhs = rhsUnknown;
-			} else {
-				try {
-					rhs = coerceType(lhs, (String) rhsUnknown);
-				} catch (Exception ex) {
-					return false;
-				}
-			}
+		Snapshot(SharedHashSet<BundleCapability> capSet, Map<String, Index> indices) {
+			m_capSet = capSet;
+			m_indices = indices;
+		}
+	}
 
-			switch (op) {
-			case SimpleFilter.EQ:
-				try {
-					return (((Comparable) lhs).compareTo(rhs) == 0);
-				} catch (Exception ex) {
-					return false;
-				}
-			case SimpleFilter.GTE:
-				try {
-					return (((Comparable) lhs).compareTo(rhs) >= 0);
-				} catch (Exception ex) {
-					return false;
-				}
-			case SimpleFilter.LTE:
-				try {
-					return (((Comparable) lhs).compareTo(rhs) <= 0);
-				} catch (Exception ex) {
-					return false;
-				}
-			case SimpleFilter.APPROX:
-				return compareApproximate(((Comparable) lhs), rhs);
-			case SimpleFilter.SUBSTRING:
-				return SimpleFilter.compareSubstring((List<String>) rhs, (String) lhs);
-			default:
-				throw new RuntimeException("Unknown comparison operator: " + op);
-			}
-		} // Booleans do not implement comparable, so special case them.
-		else if (lhs instanceof Boolean) {
-			Object rhs;
-			try {
-				rhs = coerceType(lhs, (String) rhsUnknown);
-			} catch (Exception ex) {
-				return false;
-			}
+	// Attribute value classes whose natural order is the one used by
+	// CompiledFilter and which can be created from a filter literal, so their
+	// values can be kept in sorted maps.
+	private static final Set<Class<?>> SORTABLE_CLASSES = new HashSet<Class<?>>(Arrays.<Class<?>> asList(String.class, Integer.class, Long.class, Short.class, Byte.class, Double.class, Float.class,
+			BigInteger.class, BigDecimal.class, Character.class, Boolean.class, Version.class));
 
-			switch (op) {
-			case SimpleFilter.EQ:
-			case SimpleFilter.GTE:
-			case SimpleFilter.LTE:
-			case SimpleFilter.APPROX:
-				return (lhs.equals(rhs));
-			default:
-				throw new RuntimeException("Unknown comparison operator: " + op);
-			}
+	/**
+	 * Index of the capabilities having a given attribute. Values of sortable
+	 * classes are kept in a sorted map per class, so equality, range and
+	 * prefix lookups only visit matching values. Capabilities with any other
+	 * value are remembered separately and are still compared one by one.
+	 * Instances are only modified while being built under the capability set
+	 * lock, before they are published in a snapshot. All maps and sets are
+	 * immutable and shared with the index copied from, so a change only
+	 * copies the paths to the changed entries.
+	 */
+	private static class Index {
+
+		// All capabilities having the attribute, with the value they are
+		// indexed by, so that they are removed by that value even if their
+		// attributes have changed since.
+		private SharedHashMap<BundleCapability, Object> m_present;
+		// Capabilities by attribute value, for each sortable value class.
+		private final Map<Class<?>, SharedSortedMap<Object, SharedHashSet<BundleCapability>>> m_sorted;
+		// Capabilities having values which cannot be sorted.
+		private SharedHashSet<BundleCapability> m_other;
+
+		Index() {
+			m_present = SharedHashMap.empty();
+			m_sorted = new HashMap<Class<?>, SharedSortedMap<Object, SharedHashSet<BundleCapability>>>();
+			m_other = SharedHashSet.empty();
 		}
 
-		// If the LHS is not a comparable or boolean, check if it is an
-		// array. If so, convert it to a list so we can treat it as a
-		// collection.
-		if (lhs.getClass().isArray()) {
-			lhs = convertArrayToList(lhs);
+		Index(Index index) {
+			m_present = index.m_present;
+			m_sorted = new HashMap<Class<?>, SharedSortedMap<Object, SharedHashSet<BundleCapability>>>(index.m_sorted);
+			m_other = index.m_other;
 		}
 
-		// If LHS is a collection, then call compare() on each element
-		// of the collection until a match is found.
-		if (lhs instanceof Collection) {
-			for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext();) {
-				if (compare(iter.next(), rhsUnknown, op)) {
-					return true;
-				}
-			}
-
-			return false;
+		boolean contains(BundleCapability cap) {
+			return m_present.containsKey(cap);
 		}
 
-		// Spec says SUBSTRING is false for all types other than string.
-		if ((op == SimpleFilter.SUBSTRING) && !(lhs instanceof String)) {
-			return false;
+		// Returns the value the capability is indexed by, null if none.
+		Object getValue(BundleCapability cap) {
+			return m_present.get(cap);
 		}
 
-		// Since we cannot identify the LHS type, then we can only perform
-		// equality comparison.
-		try {
-			return lhs.equals(coerceType(lhs, (String) rhsUnknown));
-		} catch (Exception ex) {
-			return false;
+		void add(BundleCapability cap, Object value) {
+			if (value.getClass().isArray()) {
+				value = convertArrayToList(value);
+			} else if (value instanceof Collection) {
+				// Keep the elements as indexed.
+				value = new ArrayList<Object>((Collection) value);
+			}
+			m_present = m_present.with(cap, value);
+			if (value instanceof Collection) {
+				for (Object o : (Collection) value) {
+					addValue(cap, o);
+				}
+			} else {
+				addValue(cap, value);
+			}
 		}
-	}
 
-	private static boolean compareApproximate(Object lhs, Object rhs) {
-		if (rhs instanceof String) {
-			return removeWhitespace((String) lhs).equalsIgnoreCase(removeWhitespace((String) rhs));
-		} else if (rhs instanceof Character) {
-			return Character.toLowerCase(((Character) lhs)) == Character.toLowerCase(((Character) rhs));
+		private void addValue(BundleCapability cap, Object value) {
+			if (value == null) {
+				return;
+			}
+			if (!SORTABLE_CLASSES.contains(value.getClass())) {
+				m_other = m_other.with(cap);
+				return;
+			}
+			SharedSortedMap<Object, SharedHashSet<BundleCapability>> values = m_sorted.get(value.getClass());
+			if (values == null) {
+				values = SharedSortedMap.empty();
+			}
+			SharedHashSet<BundleCapability> caps = values.get(value);
+			if (caps == null) {
+				caps = SharedHashSet.empty();
+			}
+			m_sorted.put(value.getClass(), values.with(value, caps.with(cap)));
 		}
-		return lhs.equals(rhs);
-	}
 
-	private static String removeWhitespace(String s) {
-		StringBuffer sb = new StringBuffer(s.length());
-		for (int i = 0; i < s.length(); i++) {
-			if (!Character.isWhitespace(s.charAt(i))) {
-				sb.append(s.charAt(i));
+		void remove(BundleCapability cap) {
+			Object value = m_present.get(cap);
+			m_present = m_present.without(cap);
+			m_other = m_other.without(cap);
+			if (value == null) {
+				return;
+			}
+			if (value instanceof Collection) {
+				for (Object o : (Collection) value) {
+					removeValue(cap, o);
+				}
+			} else {
+				removeValue(cap, value);
 			}
 		}
-		return sb.toString();
-	}
 
-	private static Object coerceType(Object lhs, String rhsString) throws Exception {
-		// If the LHS expects a string, then we can just return
-		// the RHS since it is a string.
-		if (lhs.getClass() == rhsString.getClass()) {
-			return rhsString;
+		private void removeValue(BundleCapability cap, Object value) {
+			if (value == null) {
+				return;
+			}
+			SharedSortedMap<Object, SharedHashSet<BundleCapability>> values = m_sorted.get(value.getClass());
+			SharedHashSet<BundleCapability> caps = (values != null) ? values.get(value) : null;
+			if (caps == null) {
+				return;
+			}
+			caps = caps.without(cap);
+			values = caps.isEmpty() ? values.without(value) : values.with(value, caps);
+			if (values.isEmpty()) {
+				m_sorted.remove(value.getClass());
+			} else {
+				m_sorted.put(value.getClass(), values);
+			}
 		}
 
-		// Try to convert the RHS type to the LHS type by using
-		// the string constructor of the LHS class, if it has one.
-		Object rhs = null;
-		try {
-			// The Character class is a special case, since its constructor
-			// does not take a string, so handle it separately.
-			if (lhs instanceof Character) {
-				rhs = new Character(rhsString.charAt(0));
+		/**
+		 * Adds all capabilities matching the given attribute filter to the
+		 * given set.
+		 *
+		 * @return false if the index cannot evaluate the operation.
+		 */
+		boolean match(SimpleFilter sf, Set<BundleCapability> matches) {
+			int op = sf.getOperation();
+			if (op == SimpleFilter.PRESENT) {
+				matches.addAll(m_present.keySet());
+				return true;
+			} else if ((op != SimpleFilter.EQ) && (op != SimpleFilter.LTE) && (op != SimpleFilter.GTE) && (op != SimpleFilter.SUBSTRING)) {
+				return false;
+			}
+
+			if (op == SimpleFilter.SUBSTRING) {
+				// Spec says SUBSTRING is false for all types other than
+				// string.
+				SharedSortedMap<Object, SharedHashSet<BundleCapability>> values = m_sorted.get(String.class);
+				if (values != null) {
+					List<String> pieces = (List<String>) sf.getValue();
+					String prefix = pieces.get(0);
+					// Only visit the values starting with the literal
+					// prefix, if there is one.
+					for (Iterator<Entry<Object, SharedHashSet<BundleCapability>>> it = values.iterator((prefix.length() > 0) ? prefix : null); it.hasNext();) {
+						Entry<Object, SharedHashSet<BundleCapability>> entry = it.next();
+						String value = (String) entry.getKey();
+						if (!value.startsWith(prefix)) {
+							break;
+						}
+						if (CompiledFilter.matchesValue(sf, value)) {
+							matches.addAll(entry.getValue());
+						}
+					}
+				}
 			} else {
-				// Spec says we should trim number types.
-				if ((lhs instanceof Number) || (lhs instanceof Boolean)) {
-					rhsString = rhsString.trim();
+				for (SharedSortedMap<Object, SharedHashSet<BundleCapability>> values : m_sorted.values()) {
+					Object rhs = CompiledFilter.getLiteral(sf, values.firstKey().getClass());
+					if (rhs == null) {
+						// The literal is no value of this class, so none of
+						// them matches.
+						continue;
+					}
+					if (op == SimpleFilter.EQ) {
+						Set<BundleCapability> caps = values.get(rhs);
+						if (caps != null) {
+							matches.addAll(caps);
+						}
+					} else {
+						Iterator<Entry<Object, SharedHashSet<BundleCapability>>> it = values.iterator((op == SimpleFilter.GTE) ? rhs : null);
+						while (it.hasNext()) {
+							Entry<Object, SharedHashSet<BundleCapability>> entry = it.next();
+							if ((op == SimpleFilter.LTE) && (SharedSortedMap.compare(entry.getKey(), rhs) > 0)) {
+								break;
+							}
+							matches.addAll(entry.getValue());
+						}
+					}
 				}
-				Constructor ctor = lhs.getClass().getConstructor(STRING_CLASS);
-				ctor.setAccessible(true);
-				rhs = ctor.newInstance(new Object[] { rhsString });
 			}
-		} catch (Exception ex) {
-			throw new Exception("Could not instantiate class " + lhs.getClass().getName() + " from string constructor with argument '" + rhsString + "' because " + ex);
-		}
 
-		return rhs;
-	}
-
-	/**
-	 * This is an ugly utility method to convert an array of primitives to an
-	 * array of primitive wrapper objects. This method simplifies processing
-	 * LDAP filters since the special case of primitive arrays can be ignored.
-	 *
-	 * @param array
-	 *            An array of primitive types.
-	 * @return An corresponding array using pritive wrapper objects.
-	 *
-	 */
-	private static List convertArrayToList(Object array) {
-		int len = Array.getLength(array);
-		List list = new ArrayList(len);
-		for (int i = 0; i < len; i++) {
-			list.add(Array.get(array, i));
+			// Capabilities with unsortable values need to be compared one by
+			// one.
+			CompiledFilter cf = sf.compile();
+			for (BundleCapability cap : m_other) {
+				if (!matches.contains(cap) && cf.matches(cap.getAttributes())) {
+					matches.add(cap);
+				}
+			}
+			return true;
 		}
-		return list;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.felix.framework.capabilityset;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+/**
+ * Reusable predicate tree for a {@link SimpleFilter}. Literal operands are
+ * converted once per attribute value class and cached, so evaluating the same
+ * filter repeatedly does not allocate for the common value types.
+ */
+public abstract class CompiledFilter {
+
+	/**
+	 * Provides the attribute values of the objects a filter is evaluated
+	 * against.
+	 */
+	public interface Accessor<T> {
+
+		Object get(T source, String name);
+	}
+
+	public static final Accessor<Map<String, ?>> MAP_ACCESSOR = new Accessor<Map<String, ?>>() {
+		@Override
+		public Object get(Map<String, ?> source, String name) {
+			return source.get(name);
+		}
+	};
+
+	public static final Accessor<ServiceReference<?>> SERVICE_REFERENCE_ACCESSOR = new Accessor<ServiceReference<?>>() {
+		@Override
+		public Object get(ServiceReference<?> source, String name) {
+			return source.getProperty(name);
+		}
+	};
+
+	// Dictionary keys are matched case-insensitively, as required for
+	// Filter.match(Dictionary).
+	public static final Accessor<Dictionary<String, ?>> DICTIONARY_ACCESSOR = new Accessor<Dictionary<String, ?>>() {
+		@Override
+		public Object get(Dictionary<String, ?> source, String name) {
+			Object value = source.get(name);
+			if (value == null) {
+				for (Enumeration<String> keys = source.keys(); keys.hasMoreElements();) {
+					String key = keys.nextElement();
+					if (name.equalsIgnoreCase(key)) {
+						return source.get(key);
+					}
+				}
+			}
+			return value;
+		}
+	};
+
+	public abstract <T> boolean matches(T source, Accessor<? super T> accessor);
+
+	public boolean matches(Map<String, ?> attrs) {
+		return matches(attrs, MAP_ACCESSOR);
+	}
+
+	/**
+	 * Compiles the given filter. Use {@link SimpleFilter#compile()} to get
+	 * the cached compiled form of a filter instead.
+	 *
+	 * @param sf
+	 *            The filter to compile.
+	 * @return The compiled filter.
+	 */
+	static CompiledFilter compile(SimpleFilter sf) {
+		switch (sf.getOperation()) {
+		case SimpleFilter.MATCH_ALL:
+			return MATCH_ALL;
+		case SimpleFilter.AND:
+		case SimpleFilter.OR:
+		case SimpleFilter.NOT:
+			List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+			CompiledFilter[] children = new CompiledFilter[sfs.size()];
+			for (int i = 0; i < children.length; i++) {
+				children[i] = sfs.get(i).compile();
+			}
+			if (sf.getOperation() == SimpleFilter.AND) {
+				return new And(children);
+			} else if (sf.getOperation() == SimpleFilter.OR) {
+				return new Or(children);
+			}
+			return new Not(children);
+		case SimpleFilter.PRESENT:
+			return new Present(sf.getName());
+		case SimpleFilter.SUBSTRING:
+			return new Substring(sf.getName(), (List<String>) sf.getValue());
+		case SimpleFilter.EQ:
+		case SimpleFilter.LTE:
+		case SimpleFilter.GTE:
+		case SimpleFilter.APPROX:
+			return new Compare(sf.getName(), (String) sf.getValue(), sf.getOperation());
+		default:
+			throw new IllegalArgumentException("Unknown comparison operator: " + sf.getOperation());
+		}
+	}
+
+	/**
+	 * Evaluates the given attribute filter against a single attribute value.
+	 */
+	static boolean matchesValue(SimpleFilter sf, Object value) {
+		return ((Leaf) sf.compile()).matchesValue(value);
+	}
+
+	/**
+	 * Returns the literal of the given comparison filter converted to the
+	 * given class, or null if it cannot be converted.
+	 */
+	static Object getLiteral(SimpleFilter sf, Class<?> clazz) {
+		CompiledFilter cf = sf.compile();
+		return (cf instanceof Compare) ? ((Compare) cf).getLiteral(clazz) : null;
+	}
+
+	private static final CompiledFilter MATCH_ALL = new CompiledFilter() {
+		@Override
+		public <T> boolean matches(T source, Accessor<? super T> accessor) {
+			return true;
+		}
+	};
+
+	private static class And extends CompiledFilter {
+
+		private final CompiledFilter[] m_children;
+
+		And(CompiledFilter[] children) {
+			m_children = children;
+		}
+
+		@Override
+		public <T> boolean matches(T source, Accessor<? super T> accessor) {
+			for (int i = 0; i < m_children.length; i++) {
+				if (!m_children[i].matches(source, accessor)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class Or extends CompiledFilter {
+
+		private final CompiledFilter[] m_children;
+
+		Or(CompiledFilter[] children) {
+			m_children = children;
+		}
+
+		@Override
+		public <T> boolean matches(T source, Accessor<? super T> accessor) {
+			for (int i = 0; i < m_children.length; i++) {
+				if (m_children[i].matches(source, accessor)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Not extends CompiledFilter {
+
+		private final CompiledFilter m_child;
+
+		Not(CompiledFilter[] children) {
+			// A parsed NOT has exactly one operand; like the interpreted
+			// evaluation, only the last one counts otherwise.
+			m_child = (children.length > 0) ? children[children.length - 1] : null;
+		}
+
+		@Override
+		public <T> boolean matches(T source, Accessor<? super T> accessor) {
+			return (m_child == null) || !m_child.matches(source, accessor);
+		}
+	}
+
+	/**
+	 * Base class for operations on a single attribute, which evaluates
+	 * arrays and collections element by element.
+	 */
+	private abstract static class Leaf extends CompiledFilter {
+
+		final String m_name;
+
+		Leaf(String name) {
+			m_name = name;
+		}
+
+		@Override
+		public <T> boolean matches(T source, Accessor<? super T> accessor) {
+			Object lhs = accessor.get(source, m_name);
+			return (lhs != null) && matchesValue(lhs);
+		}
+
+		final boolean matchesValue(Object lhs) {
+			if ((lhs instanceof Comparable) || (lhs instanceof Boolean)) {
+				return matchesScalar(lhs);
+			} else if (lhs instanceof Object[]) {
+				Object[] array = (Object[]) lhs;
+				for (int i = 0; i < array.length; i++) {
+					if ((array[i] != null) && matchesValue(array[i])) {
+						return true;
+					}
+				}
+				return false;
+			} else if (lhs.getClass().isArray()) {
+				int len = Array.getLength(lhs);
+				for (int i = 0; i < len; i++) {
+					if (matchesScalar(Array.get(lhs, i))) {
+						return true;
+					}
+				}
+				return false;
+			} else if (lhs instanceof Collection) {
+				for (Iterator it = ((Collection) lhs).iterator(); it.hasNext();) {
+					Object o = it.next();
+					if ((o != null) && matchesValue(o)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			return matchesScalar(lhs);
+		}
+
+		abstract boolean matchesScalar(Object lhs);
+	}
+
+	private static class Present extends Leaf {
+
+		Present(String name) {
+			super(name);
+		}
+
+		@Override
+		public <T> boolean matches(T source, Accessor<? super T> accessor) {
+			return accessor.get(source, m_name) != null;
+		}
+
+		@Override
+		boolean matchesScalar(Object lhs) {
+			return true;
+		}
+	}
+
+	private static class Substring extends Leaf {
+
+		private final String[] m_pieces;
+
+		Substring(String name, List<String> pieces) {
+			super(name);
+			m_pieces = pieces.toArray(new String[pieces.size()]);
+		}
+
+		@Override
+		boolean matchesScalar(Object lhs) {
+			// Spec says SUBSTRING is false for all types other than string.
+			return (lhs instanceof String) && compareSubstring(m_pieces, (String) lhs);
+		}
+	}
+
+	private static class Compare extends Leaf {
+
+		// Marks literals which cannot be converted to a given class.
+		private static final Object INVALID = new Object();
+
+		private final String m_literal;
+		private final int m_op;
+		// Literal converted by value class, converted on first use.
+		private final ConcurrentMap<Class<?>, Object> m_literals = new ConcurrentHashMap<Class<?>, Object>(4);
+
+		Compare(String name, String literal, int op) {
+			super(name);
+			m_literal = literal;
+			m_op = op;
+		}
+
+		Object getLiteral(Class<?> clazz) {
+			Object rhs = getCoerced(clazz);
+			return (rhs != INVALID) ? rhs : null;
+		}
+
+		private Object getCoerced(Class<?> clazz) {
+			if (clazz == String.class) {
+				return m_literal;
+			}
+			Object rhs = m_literals.get(clazz);
+			if (rhs == null) {
+				rhs = coerce(clazz);
+				m_literals.put(clazz, rhs);
+			}
+			return rhs;
+		}
+
+		private Object coerce(Class<?> clazz) {
+			try {
+				// The Character class is a special case, since its
+				// constructor does not take a string, so handle it
+				// separately.
+				if (clazz == Character.class) {
+					return Character.valueOf(m_literal.charAt(0));
+				}
+				// Spec says we should trim number types.
+				String literal = (Number.class.isAssignableFrom(clazz) || (clazz == Boolean.class)) ? m_literal.trim() : m_literal;
+				if (clazz == Long.class) {
+					return Long.valueOf(literal);
+				} else if (clazz == Integer.class) {
+					return Integer.valueOf(literal);
+				} else if (clazz == Boolean.class) {
+					return Boolean.valueOf(literal);
+				} else if (clazz == Version.class) {
+					return new Version(literal);
+				}
+				// Only done once per value class, the result is cached by
+				// this filter.
+				Constructor<?> ctor = clazz.getConstructor(STRING_CLASS);
+				ctor.setAccessible(true);
+				return ctor.newInstance(new Object[] { literal });
+			} catch (Exception ex) {
+				return INVALID;
+			}
+		}
+
+		@Override
+		boolean matchesScalar(Object lhs) {
+			if (lhs instanceof String) {
+				String s = (String) lhs;
+				switch (m_op) {
+				case SimpleFilter.EQ:
+					return s.equals(m_literal);
+				case SimpleFilter.GTE:
+					return s.compareTo(m_literal) >= 0;
+				case SimpleFilter.LTE:
+					return s.compareTo(m_literal) <= 0;
+				default:
+					return compareApproximate(s, m_literal);
+				}
+			}
+
+			Object rhs = getCoerced(lhs.getClass());
+			if (rhs == INVALID) {
+				return false;
+			}
+
+			if (lhs instanceof Long) {
+				return compare(((Long) lhs).longValue(), ((Long) rhs).longValue());
+			} else if (lhs instanceof Integer) {
+				return compare(((Integer) lhs).intValue(), ((Integer) rhs).intValue());
+			} else if (lhs instanceof Comparable) {
+				if (m_op == SimpleFilter.APPROX) {
+					if (lhs instanceof Character) {
+						return Character.toLowerCase(((Character) lhs).charValue()) == Character.toLowerCase(((Character) rhs).charValue());
+					}
+					return lhs.equals(rhs);
+				}
+				try {
+					int cmp = ((Comparable) lhs).compareTo(rhs);
+					return (m_op == SimpleFilter.EQ) ? (cmp == 0) : (m_op == SimpleFilter.GTE) ? (cmp >= 0) : (cmp <= 0);
+				} catch (Exception ex) {
+					return false;
+				}
+			}
+
+			// Since we cannot identify the LHS type, then we can only
+			// perform equality comparison.
+			return lhs.equals(rhs);
+		}
+
+		private boolean compare(long lhs, long rhs) {
+			switch (m_op) {
+			case SimpleFilter.GTE:
+				return lhs >= rhs;
+			case SimpleFilter.LTE:
+				return lhs <= rhs;
+			default:
+				return lhs == rhs;
+			}
+		}
+	}
+
+	private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
+	private static boolean compareSubstring(String[] pieces, String s) {
+		// Special case, if there is only one piece, then
+		// we must perform an equality test.
+		if (pieces.length == 1) {
+			return s.equals(pieces[0]);
+		}
+
+		// There are implicit stars between each piece, and the first and
+		// last pieces might be "" to anchor the match.
+		int last = pieces.length - 1;
+		if (!s.startsWith(pieces[0])) {
+			return false;
+		}
+		int index = pieces[0].length();
+		for (int i = 1; i < last; i++) {
+			index = s.indexOf(pieces[i], index);
+			if (index < 0) {
+				return false;
+			}
+			index += pieces[i].length();
+		}
+		// The last piece must not overlap with the pieces before it.
+		return s.endsWith(pieces[last]) && (s.length() - pieces[last].length() >= index);
+	}
+
+	// Compares ignoring case and whitespace, without creating the stripped
+	// strings.
+	private static boolean compareApproximate(String lhs, String rhs) {
+		int i = 0;
+		int j = 0;
+		for (;;) {
+			while ((i < lhs.length()) && Character.isWhitespace(lhs.charAt(i))) {
+				i++;
+			}
+			while ((j < rhs.length()) && Character.isWhitespace(rhs.charAt(j))) {
+				j++;
+			}
+			if ((i == lhs.length()) || (j == rhs.length())) {
+				return (i == lhs.length()) && (j == rhs.length());
+			}
+			if (!lhs.regionMatches(true, i, rhs, j, 1)) {
+				return false;
+			}
+			i++;
+			j++;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.felix.framework.capabilityset;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable hash map. {@link #with} and {@link #without} return a new map
+ * sharing all but the changed path with this one, so a single change copies
+ * a few small arrays rather than the whole map. Keys are spread over a trie
+ * by 5 bits of their hash code per level. Null keys and values are not
+ * supported.
+ */
+final class SharedHashMap<K, V> extends AbstractMap<K, V> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+	private static final SharedHashMap<?, ?> EMPTY = new SharedHashMap<Object, Object>(null, 0);
+
+	// A Leaf, a Branch or a Collision, null if empty.
+	private final Object m_root;
+	private final int m_size;
+	private Set<Entry<K, V>> m_entrySet = null;
+
+	private SharedHashMap(Object root, int size) {
+		m_root = root;
+		m_size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <K, V> SharedHashMap<K, V> empty() {
+		return (SharedHashMap<K, V>) EMPTY;
+	}
+
+	@Override
+	public int size() {
+		return m_size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return find(m_root, key, hash(key), 0) != null;
+	}
+
+	@Override
+	public V get(Object key) {
+		Leaf<K, V> leaf = find(m_root, key, hash(key), 0);
+		return (leaf != null) ? leaf.getValue() : null;
+	}
+
+	/**
+	 * Returns a map with the given key mapped to the given value.
+	 */
+	SharedHashMap<K, V> with(K key, V value) {
+		Leaf<K, V> existing = find(m_root, key, hash(key), 0);
+		if ((existing != null) && (existing.getValue() == value)) {
+			return this;
+		}
+		Object root = put(m_root, new Leaf<K, V>(key, value, hash(key)), 0);
+		return new SharedHashMap<K, V>(root, (existing != null) ? m_size : m_size + 1);
+	}
+
+	/**
+	 * Returns a map without the given key, this map if it has no such key.
+	 */
+	SharedHashMap<K, V> without(Object key) {
+		if (find(m_root, key, hash(key), 0) == null) {
+			return this;
+		}
+		Object root = remove(m_root, key, hash(key), 0);
+		return (root != null) ? new SharedHashMap<K, V>(root, m_size - 1) : SharedHashMap.<K, V> empty();
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		if (m_entrySet == null) {
+			m_entrySet = new AbstractSet<Entry<K, V>>() {
+				@Override
+				public Iterator<Entry<K, V>> iterator() {
+					return new EntryIterator<K, V>(m_root);
+				}
+
+				@Override
+				public int size() {
+					return m_size;
+				}
+			};
+		}
+		return m_entrySet;
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		// Spread poor hash codes over the low bits used first.
+		return h ^ (h >>> 16);
+	}
+
+	private static int index(int hash, int shift) {
+		return (hash >>> shift) & MASK;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Leaf<K, V> find(Object node, Object key, int hash, int shift) {
+		while (node instanceof Branch) {
+			Branch branch = (Branch) node;
+			int bit = 1 << index(hash, shift);
+			if ((branch.m_bitmap & bit) == 0) {
+				return null;
+			}
+			node = branch.m_children[Integer.bitCount(branch.m_bitmap & (bit - 1))];
+			shift += BITS;
+		}
+		if (node instanceof Leaf) {
+			Leaf<K, V> leaf = (Leaf<K, V>) node;
+			return ((leaf.m_hash == hash) && leaf.getKey().equals(key)) ? leaf : null;
+		}
+		if (node instanceof Collision) {
+			for (Object o : ((Collision) node).m_leaves) {
+				Leaf<K, V> leaf = (Leaf<K, V>) o;
+				if ((leaf.m_hash == hash) && leaf.getKey().equals(key)) {
+					return leaf;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Object put(Object node, Leaf<?, ?> leaf, int shift) {
+		if (node == null) {
+			return leaf;
+		}
+		if (node instanceof Branch) {
+			Branch branch = (Branch) node;
+			int bit = 1 << index(leaf.m_hash, shift);
+			int pos = Integer.bitCount(branch.m_bitmap & (bit - 1));
+			Object[] children;
+			if ((branch.m_bitmap & bit) == 0) {
+				children = new Object[branch.m_children.length + 1];
+				System.arraycopy(branch.m_children, 0, children, 0, pos);
+				children[pos] = leaf;
+				System.arraycopy(branch.m_children, pos, children, pos + 1, branch.m_children.length - pos);
+				return new Branch(branch.m_bitmap | bit, children);
+			}
+			children = branch.m_children.clone();
+			children[pos] = put(children[pos], leaf, shift + BITS);
+			return new Branch(branch.m_bitmap, children);
+		}
+		int hash = (node instanceof Leaf) ? ((Leaf<?, ?>) node).m_hash : ((Collision) node).m_hash;
+		if (hash != leaf.m_hash) {
+			return merge(node, hash, leaf, leaf.m_hash, shift);
+		}
+		// Same hash code, so replace the leaf of an equal key or keep both.
+		Object[] leaves = (node instanceof Leaf) ? new Object[] { node } : ((Collision) node).m_leaves;
+		for (int i = 0; i < leaves.length; i++) {
+			if (((Leaf<?, ?>) leaves[i]).getKey().equals(leaf.getKey())) {
+				if (leaves.length == 1) {
+					return leaf;
+				}
+				leaves = leaves.clone();
+				leaves[i] = leaf;
+				return new Collision(hash, leaves);
+			}
+		}
+		Object[] grown = new Object[leaves.length + 1];
+		System.arraycopy(leaves, 0, grown, 0, leaves.length);
+		grown[leaves.length] = leaf;
+		return new Collision(hash, grown);
+	}
+
+	// Creates the branches separating two nodes with different hash codes.
+	private static Object merge(Object a, int hashA, Object b, int hashB, int shift) {
+		int indexA = index(hashA, shift);
+		int indexB = index(hashB, shift);
+		if (indexA == indexB) {
+			return new Branch(1 << indexA, new Object[] { merge(a, hashA, b, hashB, shift + BITS) });
+		}
+		return new Branch((1 << indexA) | (1 << indexB), (indexA < indexB) ? new Object[] { a, b } : new Object[] { b, a });
+	}
+
+	// Returns the node without the key, which must be contained.
+	private static Object remove(Object node, Object key, int hash, int shift) {
+		if (node instanceof Leaf) {
+			return null;
+		}
+		if (node instanceof Collision) {
+			Object[] leaves = ((Collision) node).m_leaves;
+			for (int i = 0; i < leaves.length; i++) {
+				if (((Leaf<?, ?>) leaves[i]).getKey().equals(key)) {
+					if (leaves.length == 2) {
+						return leaves[1 - i];
+					}
+					Object[] shrunk = new Object[leaves.length - 1];
+					System.arraycopy(leaves, 0, shrunk, 0, i);
+					System.arraycopy(leaves, i + 1, shrunk, i, shrunk.length - i);
+					return new Collision(hash, shrunk);
+				}
+			}
+			return node;
+		}
+		Branch branch = (Branch) node;
+		int bit = 1 << index(hash, shift);
+		int pos = Integer.bitCount(branch.m_bitmap & (bit - 1));
+		Object child = remove(branch.m_children[pos], key, hash, shift + BITS);
+		if (child != null) {
+			if ((branch.m_children.length == 1) && !(child instanceof Branch)) {
+				// A single leaf needs no branch above it.
+				return child;
+			}
+			Object[] children = branch.m_children.clone();
+			children[pos] = child;
+			return new Branch(branch.m_bitmap, children);
+		}
+		if (branch.m_children.length == 1) {
+			return null;
+		}
+		if ((branch.m_children.length == 2) && !(branch.m_children[1 - pos] instanceof Branch)) {
+			return branch.m_children[1 - pos];
+		}
+		Object[] children = new Object[branch.m_children.length - 1];
+		System.arraycopy(branch.m_children, 0, children, 0, pos);
+		System.arraycopy(branch.m_children, pos + 1, children, pos, children.length - pos);
+		return new Branch(branch.m_bitmap & ~bit, children);
+	}
+
+	private static final class Leaf<K, V> extends SimpleImmutableEntry<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		final int m_hash;
+
+		Leaf(K key, V value, int hash) {
+			super(key, value);
+			m_hash = hash;
+		}
+	}
+
+	private static final class Branch {
+		// Bit i is set if there is a child for index i.
+		final int m_bitmap;
+		final Object[] m_children;
+
+		Branch(int bitmap, Object[] children) {
+			m_bitmap = bitmap;
+			m_children = children;
+		}
+	}
+
+	// Leaves of different keys with the same hash code.
+	private static final class Collision {
+		final int m_hash;
+		final Object[] m_leaves;
+
+		Collision(int hash, Object[] leaves) {
+			m_hash = hash;
+			m_leaves = leaves;
+		}
+	}
+
+	private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+		// Arrays of nodes being visited and the position in each, deepest
+		// last. The trie is at most 7 branches deep, plus a collision.
+		private final Object[][] m_arrays = new Object[9][];
+		private final int[] m_positions = new int[9];
+		private int m_depth = -1;
+		private Leaf<K, V> m_next = null;
+
+		EntryIterator(Object root) {
+			if (root != null) {
+				push(new Object[] { root });
+				advance();
+			}
+		}
+
+		private void push(Object[] nodes) {
+			m_depth++;
+			m_arrays[m_depth] = nodes;
+			m_positions[m_depth] = 0;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void advance() {
+			m_next = null;
+			while (m_depth >= 0) {
+				Object[] nodes = m_arrays[m_depth];
+				if (m_positions[m_depth] == nodes.length) {
+					m_arrays[m_depth] = null;
+					m_depth--;
+					continue;
+				}
+				Object node = nodes[m_positions[m_depth]++];
+				if (node instanceof Leaf) {
+					m_next = (Leaf<K, V>) node;
+					return;
+				}
+				push((node instanceof Branch) ? ((Branch) node).m_children : ((Collision) node).m_leaves);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return m_next != null;
+		}
+
+		@Override
+		public Entry<K, V> next() {
+			if (m_next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry<K, V> next = m_next;
+			advance();
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.felix.framework.capabilityset;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * Immutable hash set on top of {@link SharedHashMap}, so that adding or
+ * removing an element shares most of the set with the previous one.
+ */
+final class SharedHashSet<E> extends AbstractSet<E> {
+
+	private static final SharedHashSet<?> EMPTY = new SharedHashSet<Object>(SharedHashMap.<Object, Boolean> empty());
+
+	private final SharedHashMap<E, Boolean> m_map;
+
+	private SharedHashSet(SharedHashMap<E, Boolean> map) {
+		m_map = map;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <E> SharedHashSet<E> empty() {
+		return (SharedHashSet<E>) EMPTY;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return m_map.containsKey(o);
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return m_map.keySet().iterator();
+	}
+
+	@Override
+	public int size() {
+		return m_map.size();
+	}
+
+	SharedHashSet<E> with(E e) {
+		SharedHashMap<E, Boolean> map = m_map.with(e, Boolean.TRUE);
+		return (map != m_map) ? new SharedHashSet<E>(map) : this;
+	}
+
+	SharedHashSet<E> without(Object o) {
+		SharedHashMap<E, Boolean> map = m_map.without(o);
+		return (map != m_map) ? new SharedHashSet<E>(map) : this;
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.felix.framework.capabilityset;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable map sorted by the natural order of its keys, kept as an AVL
+ * tree. {@link #with} and {@link #without} copy only the nodes on the path
+ * to the changed key and share the rest of the tree with this map.
+ */
+final class SharedSortedMap<K, V> {
+
+	private static final SharedSortedMap<?, ?> EMPTY = new SharedSortedMap<Object, Object>(null);
+
+	private final Node<K, V> m_root;
+
+	private SharedSortedMap(Node<K, V> root) {
+		m_root = root;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <K, V> SharedSortedMap<K, V> empty() {
+		return (SharedSortedMap<K, V>) EMPTY;
+	}
+
+	boolean isEmpty() {
+		return m_root == null;
+	}
+
+	V get(Object key) {
+		Node<K, V> node = m_root;
+		while (node != null) {
+			int c = compare(key, node.getKey());
+			if (c == 0) {
+				return node.getValue();
+			}
+			node = (c < 0) ? node.m_left : node.m_right;
+		}
+		return null;
+	}
+
+	K firstKey() {
+		Node<K, V> node = m_root;
+		if (node == null) {
+			throw new NoSuchElementException();
+		}
+		while (node.m_left != null) {
+			node = node.m_left;
+		}
+		return node.getKey();
+	}
+
+	SharedSortedMap<K, V> with(K key, V value) {
+		return new SharedSortedMap<K, V>(put(m_root, key, value));
+	}
+
+	SharedSortedMap<K, V> without(Object key) {
+		Node<K, V> root = remove(m_root, key);
+		return (root != m_root) ? new SharedSortedMap<K, V>(root) : this;
+	}
+
+	/**
+	 * Returns the entries in ascending key order, starting with the first
+	 * key not less than the given one, or with the first key if null.
+	 */
+	Iterator<Entry<K, V>> iterator(Object from) {
+		return new EntryIterator<K, V>(m_root, from);
+	}
+
+	@SuppressWarnings("unchecked")
+	static int compare(Object a, Object b) {
+		return ((Comparable<Object>) a).compareTo(b);
+	}
+
+	private static int height(Node<?, ?> node) {
+		return (node != null) ? node.m_height : 0;
+	}
+
+	private static <K, V> Node<K, V> put(Node<K, V> node, K key, V value) {
+		if (node == null) {
+			return new Node<K, V>(key, value, null, null);
+		}
+		int c = compare(key, node.getKey());
+		if (c < 0) {
+			return balance(node.getKey(), node.getValue(), put(node.m_left, key, value), node.m_right);
+		} else if (c > 0) {
+			return balance(node.getKey(), node.getValue(), node.m_left, put(node.m_right, key, value));
+		}
+		return new Node<K, V>(key, value, node.m_left, node.m_right);
+	}
+
+	// Returns the same node if the key is not contained.
+	private static <K, V> Node<K, V> remove(Node<K, V> node, Object key) {
+		if (node == null) {
+			return null;
+		}
+		int c = compare(key, node.getKey());
+		if (c < 0) {
+			Node<K, V> left = remove(node.m_left, key);
+			return (left != node.m_left) ? balance(node.getKey(), node.getValue(), left, node.m_right) : node;
+		} else if (c > 0) {
+			Node<K, V> right = remove(node.m_right, key);
+			return (right != node.m_right) ? balance(node.getKey(), node.getValue(), node.m_left, right) : node;
+		}
+		if (node.m_left == null) {
+			return node.m_right;
+		} else if (node.m_right == null) {
+			return node.m_left;
+		}
+		Node<K, V> next = node.m_right;
+		while (next.m_left != null) {
+			next = next.m_left;
+		}
+		return balance(next.getKey(), next.getValue(), node.m_left, removeFirst(node.m_right));
+	}
+
+	private static <K, V> Node<K, V> removeFirst(Node<K, V> node) {
+		if (node.m_left == null) {
+			return node.m_right;
+		}
+		return balance(node.getKey(), node.getValue(), removeFirst(node.m_left), node.m_right);
+	}
+
+	private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left, Node<K, V> right) {
+		int hl = height(left);
+		int hr = height(right);
+		if (hl > hr + 1) {
+			if (height(left.m_left) >= height(left.m_right)) {
+				return new Node<K, V>(left.getKey(), left.getValue(), left.m_left, new Node<K, V>(key, value, left.m_right, right));
+			}
+			Node<K, V> lr = left.m_right;
+			return new Node<K, V>(lr.getKey(), lr.getValue(), new Node<K, V>(left.getKey(), left.getValue(), left.m_left, lr.m_left), new Node<K, V>(key, value, lr.m_right, right));
+		} else if (hr > hl + 1) {
+			if (height(right.m_right) >= height(right.m_left)) {
+				return new Node<K, V>(right.getKey(), right.getValue(), new Node<K, V>(key, value, left, right.m_left), right.m_right);
+			}
+			Node<K, V> rl = right.m_left;
+			return new Node<K, V>(rl.getKey(), rl.getValue(), new Node<K, V>(key, value, left, rl.m_left), new Node<K, V>(right.getKey(), right.getValue(), rl.m_right, right.m_right));
+		}
+		return new Node<K, V>(key, value, left, right);
+	}
+
+	private static final class Node<K, V> extends SimpleImmutableEntry<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		final Node<K, V> m_left;
+		final Node<K, V> m_right;
+		final int m_height;
+
+		Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+			super(key, value);
+			m_left = left;
+			m_right = right;
+			m_height = Math.max(height(left), height(right)) + 1;
+		}
+	}
+
+	private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+		// Nodes whose entry and right subtree are still to be visited,
+		// next one last.
+		private final List<Node<K, V>> m_stack = new ArrayList<Node<K, V>>();
+
+		EntryIterator(Node<K, V> node, Object from) {
+			while (node != null) {
+				if ((from == null) || (compare(node.getKey(), from) >= 0)) {
+					m_stack.add(node);
+					node = node.m_left;
+				} else {
+					node = node.m_right;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !m_stack.isEmpty();
+		}
+
+		@Override
+		public Entry<K, V> next() {
+			if (m_stack.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			Node<K, V> next = m_stack.remove(m_stack.size() - 1);
+			for (Node<K, V> node = next.m_right; node != null; node = node.m_left) {
+				m_stack.add(node);
+			}
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
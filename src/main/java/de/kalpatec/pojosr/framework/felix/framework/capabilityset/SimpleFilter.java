@@ -33,6 +33,8 @@ public class SimpleFilter {
 	private final String m_name;
 	private final Object m_value;
 	private final int m_op;
+	// Compiled form of this filter, created on first use.
+	private volatile CompiledFilter m_compiled;
 
 	public SimpleFilter(String attr, Object value, int op) {
 		m_name = attr;
@@ -40,6 +42,21 @@ public class SimpleFilter {
 		m_op = op;
 	}
 
+	/**
+	 * Returns the compiled form of this filter, which evaluates faster than
+	 * the filter itself when used repeatedly.
+	 *
+	 * @return The compiled filter.
+	 */
+	public CompiledFilter compile() {
+		CompiledFilter compiled = m_compiled;
+		if (compiled == null) {
+			compiled = CompiledFilter.compile(this);
+			m_compiled = compiled;
+		}
+		return compiled;
+	}
+
 	public String getName() {
 		return m_name;
 	}
@@ -391,9 +408,9 @@ public class SimpleFilter {
 			}
 
 			// If this is the last piece, then make sure the
-			// string ends with it.
+			// string ends with it, after the pieces before it.
 			if (i == len - 1) {
-				if (s.endsWith(piece)) {
+				if (s.endsWith(piece) && (s.length() - piece.length() >= index)) {
 					result = true;
 				} else {
 					result = false;
@@ -16,6 +16,7 @@
 package de.kalpatec.pojosr.framework.felix.framework.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
@@ -23,15 +24,28 @@ import java.util.EventListener;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
@@ -43,6 +57,8 @@ import org.osgi.framework.hooks.service.ListenerHook;
 import org.osgi.framework.launch.Framework;
 
 import de.kalpatec.pojosr.framework.felix.framework.ServiceRegistry;
+import de.kalpatec.pojosr.framework.felix.framework.capabilityset.SimpleFilter;
+import de.kalpatec.pojosr.framework.metrics.RegistryMetrics;
 
 public class EventDispatcher {
 
@@ -51,47 +67,164 @@ public class EventDispatcher {
 	private Map<BundleContext, List<ListenerInfo>> m_bndlListeners = Collections.EMPTY_MAP;
 	private Map<BundleContext, List<ListenerInfo>> m_syncBndlListeners = Collections.EMPTY_MAP;
 	private Map<BundleContext, List<ListenerInfo>> m_svcListeners = Collections.EMPTY_MAP;
-	// A single thread is used to deliver events for all dispatchers.
-	private static Thread m_thread = null;
-	private final static String m_threadLock = new String("thread lock");
-	private static int m_references = 0;
-	private static volatile boolean m_stopping = false;
-	// List of requests.
-	private static final List<Request> m_requestList = new ArrayList<Request>();
-	// Pooled requests to avoid memory allocation.
-	private static final List<Request> m_requestPool = new ArrayList<Request>();
+	// Service listeners by the objectClass values their filter requires,
+	// updated along with m_svcListeners.
+	private ServiceListenerIndex m_svcIndex = ServiceListenerIndex.EMPTY;
 	private static final boolean m_sync = "true".equalsIgnoreCase(System.getProperty("de.kalpatec.pojosr.framework.events.sync"));
+	// Marks threads delivering asynchronous events.
+	private static final ThreadLocal<Boolean> m_dispatching = new ThreadLocal<Boolean>();
+	// Maximum number of events a listener gets in a row before other
+	// listeners are served.
+	private static final int LANE_BATCH_SIZE = 64;
+	// Maximum number of undelivered events of an isolated listener. These
+	// are not counted in m_pending, so a slow listener never holds up the
+	// thread firing the event.
+	private static final int ISOLATED_LANE_CAPACITY = 1000;
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final int DEFAULT_SLOW_LIMIT = 3;
+
+	// Executor supplied by the owner, or null to use a single thread.
+	private final Executor m_configuredExecutor;
+	// Maximum number of undelivered asynchronous events.
+	private final int m_capacity;
+	// Whether to drop events when at capacity instead of blocking the
+	// sender.
+	private final boolean m_dropOnOverflow;
+	// The following fields are guarded by m_lanes.
+	// Executor delivering asynchronous events while dispatching.
+	private Executor m_executor = null;
+	private ExecutorService m_ownExecutor = null;
+	private int m_references = 0;
+	private volatile boolean m_stopping = false;
+	// Undelivered events by listener, to deliver them to each listener in
+	// order while different listeners are served concurrently.
+	private final Map<EventListener, Lane> m_lanes = new IdentityHashMap<EventListener, Lane>();
+	private int m_pending = 0;
+	private int m_maxPending = 0;
+	private final AtomicLong m_dropped = new AtomicLong();
+	private final AtomicLong m_overflows = new AtomicLong();
+	// Receives measurements if set.
+	private volatile RegistryMetrics m_metrics = null;
+	// Deliveries taking longer than this many nanoseconds are slow, 0 to
+	// not time deliveries.
+	private volatile long m_slowThreshold = 0;
+	// Number of slow deliveries after which a listener is reported.
+	private volatile int m_slowLimit = DEFAULT_SLOW_LIMIT;
+	// Whether service events are delivered asynchronously to reported
+	// listeners.
+	private volatile boolean m_isolateSlow = false;
+	// Lanes of isolated service listeners, guarded by m_lanes.
+	private final Map<EventListener, Lane> m_isolatedLanes = new IdentityHashMap<EventListener, Lane>();
+	// Threads delivering to isolated listeners, created on demand.
+	private ExecutorService m_isolatedExecutor = null;
+	// Milliseconds during which MODIFIED events of a service are merged, 0
+	// to deliver each of them.
+	private volatile long m_modifiedWindow = 0;
+	// MODIFIED events waiting for their window to pass, by service. Guards
+	// m_modifiedExecutor and m_modifiedStopped.
+	private final Map<ServiceReference, PendingModification> m_modified = new HashMap<ServiceReference, PendingModification>();
+	// Thread delivering merged MODIFIED events, created on demand.
+	private ScheduledExecutorService m_modifiedExecutor = null;
+	// Whether dispatching is stopped, so MODIFIED events are delivered
+	// right away.
+	private boolean m_modifiedStopped = false;
 
 	public EventDispatcher(ServiceRegistry registry) {
+		this(registry, null, DEFAULT_CAPACITY, false);
+	}
+
+	/**
+	 * @param registry
+	 *            The service registry.
+	 * @param executor
+	 *            The executor delivering asynchronous events, or null to use
+	 *            a thread of the dispatcher's own.
+	 * @param capacity
+	 *            The maximum number of undelivered asynchronous events.
+	 * @param dropOnOverflow
+	 *            Whether to drop events at capacity rather than blocking the
+	 *            thread firing them.
+	 */
+	public EventDispatcher(ServiceRegistry registry, Executor executor, int capacity, boolean dropOnOverflow) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
 		m_registry = registry;
+		m_configuredExecutor = executor;
+		m_capacity = capacity;
+		m_dropOnOverflow = dropOnOverflow;
+	}
+
+	/**
+	 * Sets the metrics receiving listener dispatch times and the number of
+	 * undelivered asynchronous events, or null to measure nothing.
+	 */
+	public void setMetrics(RegistryMetrics metrics) {
+		m_metrics = metrics;
+	}
+
+	/**
+	 * Sets how slow listeners are detected and handled.
+	 *
+	 * @param thresholdMillis
+	 *            Deliveries taking longer than this are slow, 0 to not time
+	 *            deliveries.
+	 * @param limit
+	 *            Number of slow deliveries after which a listener is reported
+	 *            with a {@link FrameworkEvent#WARNING}.
+	 * @param isolate
+	 *            Whether to deliver service events to reported service
+	 *            listeners asynchronously, so that they don't hold up the
+	 *            thread firing the events.
+	 */
+	public void setSlowListenerPolicy(long thresholdMillis, int limit, boolean isolate) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("Limit must be positive: " + limit);
+		}
+		m_slowLimit = limit;
+		m_isolateSlow = isolate;
+		m_slowThreshold = TimeUnit.MILLISECONDS.toNanos(Math.max(0, thresholdMillis));
+	}
+
+	/**
+	 * Sets the window during which repeated MODIFIED events of a service are
+	 * merged. The first MODIFIED event of a service starts the window, the
+	 * following ones only update it. When the window has passed, a single
+	 * event carrying the properties the service had before the first change
+	 * is delivered on a thread of the dispatcher, so that listeners see
+	 * MODIFIED_ENDMATCH exactly if the service stopped matching during the
+	 * window. A pending event is delivered before the UNREGISTERING event of
+	 * its service.
+	 *
+	 * @param windowMillis
+	 *            The window, 0 to deliver each event on the thread changing
+	 *            the properties.
+	 */
+	public void setModifiedEventWindow(long windowMillis) {
+		m_modifiedWindow = Math.max(0, windowMillis);
+		if (windowMillis <= 0) {
+			flushModified(null);
+		}
 	}
 
 	public void startDispatching() {
-		synchronized (m_threadLock) {
-			// Start event dispatching thread if necessary.
-			if (m_thread == null || !m_thread.isAlive()) {
+		synchronized (m_modified) {
+			m_modifiedStopped = false;
+		}
+		synchronized (m_lanes) {
+			// Create the event dispatching thread if necessary.
+			if ((m_executor == null) && !m_sync) {
 				m_stopping = false;
-
-				if (!m_sync) {
-					m_thread = new Thread(new Runnable() {
+				if (m_configuredExecutor != null) {
+					m_executor = m_configuredExecutor;
+				} else {
+					m_ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
 						@Override
-						public void run() {
-							try {
-								EventDispatcher.run();
-							} finally {
-								// Ensure we update state even if stopped by
-								// external cause
-								// e.g. an Applet VM forceably killing threads
-								synchronized (m_threadLock) {
-									m_thread = null;
-									m_stopping = false;
-									m_references = 0;
-									m_threadLock.notifyAll();
-								}
-							}
+						public Thread newThread(Runnable r) {
+							return new Thread(r, "FelixDispatchQueue");
 						}
-					}, "FelixDispatchQueue");
-					m_thread.start();
+					});
+					m_executor = m_ownExecutor;
 				}
 			}
 
@@ -101,9 +234,12 @@ public class EventDispatcher {
 	}
 
 	public void stopDispatching() {
-		synchronized (m_threadLock) {
-			// Return if already dead or stopping.
-			if (m_thread == null || m_stopping) {
+		ExecutorService ownExecutor = null;
+		ExecutorService isolatedExecutor = null;
+		synchronized (m_lanes) {
+			// Return if already dead or stopping. Without an executor, as in
+			// synchronous mode, the use counter still has to be kept.
+			if ((m_references == 0) || m_stopping) {
 				return;
 			}
 
@@ -113,26 +249,74 @@ public class EventDispatcher {
 				return;
 			}
 
-			m_stopping = true;
+			if (m_executor != null) {
+				m_stopping = true;
+
+				// Let the pending events be delivered, unless we are
+				// delivering one of them.
+				while ((m_pending > 0) && !isDispatchThread()) {
+					try {
+						m_lanes.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+
+				ownExecutor = m_ownExecutor;
+				m_ownExecutor = null;
+				m_executor = null;
+				isolatedExecutor = m_isolatedExecutor;
+				m_isolatedExecutor = null;
+			}
 		}
 
-		// Signal dispatch thread.
-		synchronized (m_requestList) {
-			m_requestList.notify();
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+		if (isolatedExecutor != null) {
+			isolatedExecutor.shutdown();
 		}
 
-		// Use separate lock for shutdown to prevent any chance of nested lock
-		// deadlock
-		synchronized (m_threadLock) {
-			while (m_thread != null) {
-				try {
-					m_threadLock.wait();
-				} catch (InterruptedException ex) {
-				}
-			}
+		ScheduledExecutorService modifiedExecutor;
+		synchronized (m_modified) {
+			m_modifiedStopped = true;
+			modifiedExecutor = m_modifiedExecutor;
+			m_modifiedExecutor = null;
+		}
+		// Deliver the pending events here, their timers are discarded.
+		flushModified(null);
+		if (modifiedExecutor != null) {
+			modifiedExecutor.shutdownNow();
+		}
+	}
+
+	// Number of asynchronous events dropped because the queue was full.
+	public long getDroppedEventCount() {
+		return m_dropped.get();
+	}
+
+	// Number of asynchronous events fired while the queue was full.
+	public long getOverflowCount() {
+		return m_overflows.get();
+	}
+
+	public int getPendingEventCount() {
+		synchronized (m_lanes) {
+			return m_pending;
 		}
 	}
 
+	public int getMaxPendingEventCount() {
+		synchronized (m_lanes) {
+			return m_maxPending;
+		}
+	}
+
+	private static boolean isDispatchThread() {
+		return m_dispatching.get() != null;
+	}
+
 	public Filter addListener(BundleContext bc, Class clazz, EventListener l, Filter filter) {
 		// Verify the listener.
 		if (l == null) {
@@ -197,6 +381,7 @@ public class EventDispatcher {
 				}
 			} else if (clazz == ServiceListener.class) {
 				m_svcListeners = listeners;
+				m_svcIndex = m_svcIndex.add(info);
 			}
 		}
 		return null;
@@ -232,6 +417,7 @@ public class EventDispatcher {
 
 			// Try to find the instance in our list.
 			int idx = -1;
+			ListenerInfo removed = null;
 			for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet()) {
 				List<ListenerInfo> infos = entry.getValue();
 				for (int i = 0; i < infos.size(); i++) {
@@ -243,6 +429,7 @@ public class EventDispatcher {
 							returnInfo = new ListenerInfo(infos.get(i), true);
 						}
 						idx = i;
+						removed = info;
 						break;
 					}
 				}
@@ -263,6 +450,9 @@ public class EventDispatcher {
 				}
 			} else if (clazz == ServiceListener.class) {
 				m_svcListeners = listeners;
+				if (removed != null) {
+					m_svcIndex = m_svcIndex.remove(removed);
+				}
 			}
 		}
 
@@ -290,6 +480,10 @@ public class EventDispatcher {
 
 			// Remove all service listeners associated with the specified
 			// bundle.
+			List<ListenerInfo> infos = m_svcListeners.get(bc);
+			for (int i = 0; (infos != null) && (i < infos.size()); i++) {
+				m_svcIndex = m_svcIndex.remove(infos.get(i));
+			}
 			m_svcListeners = removeListenerInfos(m_svcListeners, bc);
 		}
 	}
@@ -312,8 +506,9 @@ public class EventDispatcher {
 					if (info.getBundleContext().equals(bc) && (info.getListenerClass() == clazz) && (info.getListener() == l)) {
 						// The spec says to update the filter in this case.
 						Filter oldFilter = info.getParsedFilter();
-						ListenerInfo newInfo = new ListenerInfo(info.getBundle(), info.getBundleContext(), info.getListenerClass(), info.getListener(), filter, info.getSecurityContext(), info.isRemoved());
+						ListenerInfo newInfo = new ListenerInfo(info, filter);
 						m_svcListeners = updateListenerInfo(m_svcListeners, i, newInfo);
+						m_svcIndex = m_svcIndex.remove(info).add(newInfo);
 						return oldFilter;
 					}
 				}
@@ -350,7 +545,7 @@ public class EventDispatcher {
 		}
 
 		// Fire all framework listeners on a separate thread.
-		fireEventAsynchronously(this, Request.FRAMEWORK_EVENT, listeners, event);
+		fireEventAsynchronously(Request.FRAMEWORK_EVENT, listeners, event);
 	}
 
 	public void fireBundleEvent(BundleEvent event) {
@@ -394,17 +589,34 @@ public class EventDispatcher {
 		// of types STARTING, STOPPING, or LAZY_ACTIVATION.
 		if ((event.getType() != BundleEvent.STARTING) && (event.getType() != BundleEvent.STOPPING) && (event.getType() != BundleEvent.LAZY_ACTIVATION)) {
 			// Fire asynchronous bundle listeners on a separate thread.
-			fireEventAsynchronously(this, Request.BUNDLE_EVENT, listeners, event);
+			fireEventAsynchronously(Request.BUNDLE_EVENT, listeners, event);
 		}
 	}
 
 	public void fireServiceEvent(final ServiceEvent event, final Dictionary oldProps, final Framework felix) {
-		// Take a snapshot of the listener array.
-		Map<BundleContext, List<ListenerInfo>> listeners = null;
+		if (m_modifiedWindow > 0) {
+			if (event.getType() == ServiceEvent.MODIFIED) {
+				if (postponeModified(event, oldProps, felix)) {
+					return;
+				}
+			} else if (event.getType() == ServiceEvent.UNREGISTERING) {
+				flushModified(event.getServiceReference());
+			}
+		}
+		fireServiceEventNow(event, oldProps, felix);
+	}
+
+	private void fireServiceEventNow(ServiceEvent event, Dictionary oldProps, Framework felix) {
+		// Take a snapshot of the listener index.
+		ServiceListenerIndex index = null;
 		synchronized (this) {
-			listeners = m_svcListeners;
+			index = m_svcIndex;
 		}
 
+		// Only listeners whose filter can match the objectClass of the
+		// service need to see the event.
+		Map<BundleContext, List<ListenerInfo>> listeners = index.getCandidates((String[]) event.getServiceReference().getProperty(Constants.OBJECTCLASS));
+
 		// Use service registry hooks to filter target listeners.
 		listeners = filterListenersUsingHooks(event, felix, listeners);
 
@@ -412,6 +624,166 @@ public class EventDispatcher {
 		fireEventImmediately(this, Request.SERVICE_EVENT, listeners, event, oldProps);
 	}
 
+	/**
+	 * Fires the given service events one after another, sharing the work
+	 * that doesn't depend on the single event: the listener index snapshot,
+	 * the candidate listeners of each objectClass and the lookup of event
+	 * hooks. Hooks registered while the events are fired only apply to later
+	 * events.
+	 */
+	public void fireServiceEvents(List<ServiceEvent> events, Framework felix) {
+		ServiceListenerIndex index = null;
+		synchronized (this) {
+			index = m_svcIndex;
+		}
+
+		Set<?> ehs = m_registry.getHooks(org.osgi.framework.hooks.service.EventHook.class);
+		Set<?> elhs = m_registry.getHooks(org.osgi.framework.hooks.service.EventListenerHook.class);
+		boolean hooks = ((ehs != null) && !ehs.isEmpty()) || ((elhs != null) && !elhs.isEmpty());
+
+		Map<List<String>, Map<BundleContext, List<ListenerInfo>>> candidates = new HashMap<List<String>, Map<BundleContext, List<ListenerInfo>>>();
+		for (ServiceEvent event : events) {
+			String[] classes = (String[]) event.getServiceReference().getProperty(Constants.OBJECTCLASS);
+			List<String> key = Arrays.asList(classes);
+			Map<BundleContext, List<ListenerInfo>> listeners = candidates.get(key);
+			if (listeners == null) {
+				listeners = index.getCandidates(classes);
+				candidates.put(key, listeners);
+			}
+			if (hooks) {
+				listeners = filterListenersUsingHooks(event, felix, listeners);
+			}
+			fireEventImmediately(this, Request.SERVICE_EVENT, listeners, event, null);
+		}
+	}
+
+	// Returns false if the event must be delivered right away.
+	private boolean postponeModified(ServiceEvent event, Dictionary oldProps, Framework felix) {
+		final ServiceReference ref = event.getServiceReference();
+		synchronized (m_modified) {
+			PendingModification current = m_modified.get(ref);
+			if (current != null) {
+				// Keep the properties from before the first change. A change
+				// made while the merged event is delivered follows it.
+				if ((current.m_deliverer != null) && (current.m_next == null)) {
+					current.m_next = new PendingModification(event, oldProps, felix);
+				}
+				return true;
+			}
+			if (m_modifiedStopped) {
+				return false;
+			}
+			if (m_modifiedExecutor == null) {
+				m_modifiedExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "FelixModifiedEvents");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			final PendingModification pending = new PendingModification(event, oldProps, felix);
+			try {
+				m_modifiedExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						deliverModified(ref, pending);
+					}
+				}, m_modifiedWindow, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException ex) {
+				return false;
+			}
+			m_modified.put(ref, pending);
+			return true;
+		}
+	}
+
+	// Delivers the given MODIFIED event once its window has passed. The event
+	// stays in m_modified until delivered, so that flushModified() can wait
+	// for it and no later event of the service overtakes it.
+	private void deliverModified(ServiceReference ref, PendingModification pending) {
+		synchronized (m_modified) {
+			if ((m_modified.get(ref) != pending) || (pending.m_deliverer != null)) {
+				return;
+			}
+			pending.m_deliverer = Thread.currentThread();
+		}
+		PendingModification delivered = pending;
+		try {
+			while (delivered != null) {
+				fireServiceEventNow(delivered.m_event, delivered.m_oldProps, delivered.m_felix);
+				synchronized (m_modified) {
+					delivered = pending.m_next;
+					pending.m_next = null;
+					if (delivered == null) {
+						m_modified.remove(ref);
+						pending.m_deliverer = null;
+						m_modified.notifyAll();
+					}
+				}
+			}
+		} finally {
+			if (delivered != null) {
+				synchronized (m_modified) {
+					if (m_modified.get(ref) == pending) {
+						m_modified.remove(ref);
+					}
+					pending.m_deliverer = null;
+					m_modified.notifyAll();
+				}
+			}
+		}
+	}
+
+	// Delivers the pending MODIFIED event of the given service, or of all
+	// services if null, after any that is being delivered.
+	private void flushModified(ServiceReference ref) {
+		List<PendingModification> flushed = new ArrayList<PendingModification>();
+		synchronized (m_modified) {
+			while (isDeliveringModified(ref)) {
+				try {
+					m_modified.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			Iterator<Entry<ServiceReference, PendingModification>> it = m_modified.entrySet().iterator();
+			while (it.hasNext()) {
+				Entry<ServiceReference, PendingModification> entry = it.next();
+				if ((ref != null) && !ref.equals(entry.getKey())) {
+					continue;
+				}
+				PendingModification pending = entry.getValue();
+				if (pending.m_deliverer == null) {
+					it.remove();
+					flushed.add(pending);
+				} else if (pending.m_next != null) {
+					// Flushed while delivering the event, so the change
+					// that followed it can go now.
+					flushed.add(pending.m_next);
+					pending.m_next = null;
+				}
+			}
+		}
+		for (PendingModification pending : flushed) {
+			fireServiceEventNow(pending.m_event, pending.m_oldProps, pending.m_felix);
+		}
+	}
+
+	// Whether another thread is delivering a MODIFIED event of the given
+	// service, or of any service if null. Called while holding m_modified.
+	private boolean isDeliveringModified(ServiceReference ref) {
+		for (Entry<ServiceReference, PendingModification> entry : m_modified.entrySet()) {
+			Thread deliverer = entry.getValue().m_deliverer;
+			if ((deliverer != null) && (deliverer != Thread.currentThread()) && ((ref == null) || ref.equals(entry.getKey()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	// TODO: OSGi R4.3 - This is ugly and inefficient.
 	private Map<BundleContext, List<ListenerInfo>> filterListenersUsingHooks(ServiceEvent event, Framework felix, Map<BundleContext, List<ListenerInfo>> listeners) {
 		Set<ServiceReference<org.osgi.framework.hooks.service.EventHook>> ehs = m_registry.getHooks(org.osgi.framework.hooks.service.EventHook.class);
@@ -527,74 +899,208 @@ public class EventDispatcher {
 		return whitelist;
 	}
 
-	private static void fireEventAsynchronously(EventDispatcher dispatcher, int type, Map<BundleContext, List<ListenerInfo>> listeners, EventObject event) {
-		if (!m_sync) {
-			// TODO: should possibly check this within thread lock, seems to be
-			// ok
-			// though without
-			// If dispatch thread is stopped, then ignore dispatch request.
-			if (m_stopping || m_thread == null) {
-				return;
-			}
+	private void fireEventAsynchronously(int type, Map<BundleContext, List<ListenerInfo>> listeners, EventObject event) {
+		if (m_sync) {
+			fireEventImmediately(this, type, listeners, event, null);
+			return;
+		}
 
-			// First get a request from the pool or create one if necessary.
-			Request req = null;
-			synchronized (m_requestPool) {
-				if (m_requestPool.size() > 0) {
-					req = m_requestPool.remove(0);
-				} else {
-					req = new Request();
+		for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet()) {
+			for (ListenerInfo info : entry.getValue()) {
+				if (!enqueue(new Request(info, type, event))) {
+					return;
 				}
 			}
+		}
+	}
 
-			// Initialize dispatch request.
-			req.m_dispatcher = dispatcher;
-			req.m_type = type;
-			req.m_listeners = listeners;
-			req.m_event = event;
+	/**
+	 * Queues an event for asynchronous delivery to a single listener.
+	 *
+	 * @return false if the dispatcher is not dispatching.
+	 */
+	private boolean enqueue(Request req) {
+		Lane lane;
+		synchronized (m_lanes) {
+			// If dispatching is stopped, then ignore dispatch request.
+			if ((m_executor == null) || m_stopping) {
+				return false;
+			}
 
-			// Lock the request list.
-			synchronized (m_requestList) {
-				// Add our request to the list.
-				m_requestList.add(req);
-				// Notify the dispatch thread that there is work to do.
-				m_requestList.notify();
+			if (req.m_type == Request.ISOLATED_SERVICE_EVENT) {
+				return enqueueIsolated(req);
 			}
-		} else {
-			fireEventImmediately(dispatcher, type, listeners, event, null);
+
+			if (m_pending >= m_capacity) {
+				m_overflows.incrementAndGet();
+				if (m_dropOnOverflow) {
+					m_dropped.incrementAndGet();
+					return true;
+				}
+				// Wait for room, unless called while delivering an event,
+				// which would wait for itself.
+				while ((m_pending >= m_capacity) && !isDispatchThread() && !m_stopping) {
+					try {
+						m_lanes.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						m_dropped.incrementAndGet();
+						return true;
+					}
+				}
+				if ((m_executor == null) || m_stopping) {
+					return false;
+				}
+			}
+
+			lane = m_lanes.get(req.m_info.getListener());
+			if (lane == null) {
+				lane = new Lane(req.m_info.getListener(), m_executor, m_lanes);
+				m_lanes.put(req.m_info.getListener(), lane);
+			}
+			lane.m_queue.add(req);
+			m_pending++;
+			m_maxPending = Math.max(m_maxPending, m_pending);
+			queueDepthChanged();
+			if (lane.m_scheduled) {
+				return true;
+			}
+			lane.m_scheduled = true;
+		}
+
+		lane.schedule();
+		return true;
+	}
+
+	// Called while holding m_lanes. Never waits: when the lane of the
+	// listener is full the event is dropped.
+	private boolean enqueueIsolated(Request req) {
+		Lane lane = m_isolatedLanes.get(req.m_info.getListener());
+		if (lane == null) {
+			lane = new Lane(req.m_info.getListener(), getIsolatedExecutor(), m_isolatedLanes);
+			m_isolatedLanes.put(req.m_info.getListener(), lane);
+		}
+		if (lane.m_queue.size() >= ISOLATED_LANE_CAPACITY) {
+			m_overflows.incrementAndGet();
+			m_dropped.incrementAndGet();
+			return true;
+		}
+		lane.m_queue.add(req);
+		if (!lane.m_scheduled) {
+			lane.m_scheduled = true;
+			lane.schedule();
+		}
+		return true;
+	}
+
+	// Called while holding m_lanes.
+	private Executor getIsolatedExecutor() {
+		if (m_isolatedExecutor == null) {
+			// A thread per isolated listener, so that slow listeners don't
+			// hold up each other either.
+			m_isolatedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger m_count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FelixIsolatedListener-" + m_count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return m_isolatedExecutor;
+	}
+
+	// Called while holding m_lanes.
+	private void queueDepthChanged() {
+		RegistryMetrics metrics = m_metrics;
+		if (metrics != null) {
+			metrics.eventQueueDepthChanged(m_pending);
 		}
 	}
 
+	private void deliverAsynchronously(Request req) {
+		deliver(this, req.m_type, req.m_info, req.m_event, null);
+	}
+
 	private static void fireEventImmediately(EventDispatcher dispatcher, int type, Map<BundleContext, List<ListenerInfo>> listeners, EventObject event, Dictionary oldProps) {
 		if (!listeners.isEmpty()) {
 			// Notify appropriate listeners.
 			for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet()) {
 				for (ListenerInfo info : entry.getValue()) {
-					Bundle bundle = info.getBundle();
-					EventListener l = info.getListener();
-					Filter filter = info.getParsedFilter();
-					Object acc = info.getSecurityContext();
-
-					try {
-						if (type == Request.FRAMEWORK_EVENT) {
-							invokeFrameworkListenerCallback(bundle, l, event);
-						} else if (type == Request.BUNDLE_EVENT) {
-							invokeBundleListenerCallback(bundle, l, event);
-						} else if (type == Request.SERVICE_EVENT) {
-							invokeServiceListenerCallback(bundle, l, filter, acc, event, oldProps);
-						}
-					} catch (Throwable th) {
-						if ((type != Request.FRAMEWORK_EVENT) || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR)) {
-							System.out.println("EventDispatcher: Error during dispatch.");
-							th.printStackTrace();
-							dispatcher.fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
-						}
+					if ((type != Request.SERVICE_EVENT) || !info.getStatus().m_isolated || !dispatcher.deliverIsolated(info, (ServiceEvent) event, oldProps)) {
+						deliver(dispatcher, type, info, event, oldProps);
 					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Queues a service event for an isolated listener. Whether and how the
+	 * listener sees the event is decided right away, since the service
+	 * properties may change until the event is delivered.
+	 *
+	 * @return false if the event can't be delivered asynchronously.
+	 */
+	private boolean deliverIsolated(ListenerInfo info, ServiceEvent event, Dictionary oldProps) {
+		ServiceEvent resolved = resolveServiceEvent(info.getBundle(), info.getParsedFilter(), event, oldProps);
+		return (resolved == null) || enqueue(new Request(info, Request.ISOLATED_SERVICE_EVENT, resolved));
+	}
+
+	private static void deliver(EventDispatcher dispatcher, int type, ListenerInfo info, EventObject event, Dictionary oldProps) {
+		Bundle bundle = info.getBundle();
+		EventListener l = info.getListener();
+		Filter filter = info.getParsedFilter();
+		Object acc = info.getSecurityContext();
+		RegistryMetrics metrics = dispatcher.m_metrics;
+		long slowThreshold = dispatcher.m_slowThreshold;
+		boolean timed = (metrics != null) || (slowThreshold > 0);
+		long start = timed ? System.nanoTime() : 0;
+
+		try {
+			if (type == Request.FRAMEWORK_EVENT) {
+				invokeFrameworkListenerCallback(bundle, l, event);
+			} else if (type == Request.BUNDLE_EVENT) {
+				invokeBundleListenerCallback(bundle, l, event);
+			} else if (type == Request.SERVICE_EVENT) {
+				invokeServiceListenerCallback(bundle, l, filter, acc, event, oldProps);
+			} else if (type == Request.ISOLATED_SERVICE_EVENT) {
+				((ServiceListener) l).serviceChanged((ServiceEvent) event);
+			}
+		} catch (Throwable th) {
+			if ((type != Request.FRAMEWORK_EVENT) || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR)) {
+				System.out.println("EventDispatcher: Error during dispatch.");
+				th.printStackTrace();
+				dispatcher.fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
+			}
+		}
+		if (timed) {
+			long nanos = System.nanoTime() - start;
+			if (metrics != null) {
+				metrics.listenerCalled(l, nanos);
+			}
+			if ((slowThreshold > 0) && (nanos > slowThreshold)) {
+				dispatcher.slowDelivery(info, nanos);
+			}
+		}
+	}
+
+	private void slowDelivery(ListenerInfo info, long nanos) {
+		ListenerStatus status = info.getStatus();
+		int count = status.m_slowDeliveries.incrementAndGet();
+		if (count != m_slowLimit) {
+			return;
+		}
+		// Report the listener once.
+		boolean isolate = m_isolateSlow && (info.getListenerClass() == ServiceListener.class);
+		String msg = "Listener " + info.getListener() + " of bundle " + info.getBundle() + " took more than " + TimeUnit.NANOSECONDS.toMillis(m_slowThreshold) + " ms " + count + " times, last time " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms"
+				+ (isolate ? "; delivering service events to it asynchronously." : ".");
+		status.m_isolated = isolate;
+		fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.WARNING, info.getBundle(), new Exception(msg)));
+	}
+
 	private static void invokeFrameworkListenerCallback(Bundle bundle, final EventListener l, final EventObject event) {
 		// The spec says only active bundles receive asynchronous events,
 		// but we will include starting bundles too otherwise
@@ -617,34 +1123,44 @@ public class EventDispatcher {
 	}
 
 	private static void invokeServiceListenerCallback(Bundle bundle, final EventListener l, Filter filter, Object acc, final EventObject event, final Dictionary oldProps) {
+		ServiceEvent se = resolveServiceEvent(bundle, filter, (ServiceEvent) event, oldProps);
+		if (se != null) {
+			((ServiceListener) l).serviceChanged(se);
+		}
+	}
+
+	/**
+	 * @return the event to deliver to a listener with the given filter, or
+	 *         null if the listener doesn't get the event
+	 */
+	private static ServiceEvent resolveServiceEvent(Bundle bundle, Filter filter, ServiceEvent event, Dictionary oldProps) {
 		// Service events should be delivered to STARTING,
 		// STOPPING, and ACTIVE bundles.
 		if ((bundle.getState() != Bundle.STARTING) && (bundle.getState() != Bundle.STOPPING) && (bundle.getState() != Bundle.ACTIVE)) {
-			return;
+			return null;
 		}
 
 		// Check that the bundle has permission to get at least
 		// one of the service interfaces; the objectClass property
 		// of the service stores its service interfaces.
-		ServiceReference ref = ((ServiceEvent) event).getServiceReference();
+		ServiceReference ref = event.getServiceReference();
 
 		boolean hasPermission = true;
 		if (hasPermission) {
 			// Dispatch according to the filter.
-			boolean matched = (filter == null) || filter.match(((ServiceEvent) event).getServiceReference());
+			boolean matched = (filter == null) || filter.match(ref);
 
 			if (matched) {
-				((ServiceListener) l).serviceChanged((ServiceEvent) event);
+				return event;
 			} // We need to send an MODIFIED_ENDMATCH event if the listener
 				// matched previously.
-			else if (((ServiceEvent) event).getType() == ServiceEvent.MODIFIED) {
+			else if (event.getType() == ServiceEvent.MODIFIED) {
 				if (filter.match(oldProps)) {
-					final ServiceEvent se = new ServiceEvent(ServiceEvent.MODIFIED_ENDMATCH, ((ServiceEvent) event).getServiceReference());
-					((ServiceListener) l).serviceChanged(se);
-
+					return new ServiceEvent(ServiceEvent.MODIFIED_ENDMATCH, ref);
 				}
 			}
 		}
+		return null;
 	}
 
 	private static Map<BundleContext, List<ListenerInfo>> addListenerInfo(Map<BundleContext, List<ListenerInfo>> listeners, ListenerInfo info) {
@@ -699,6 +1215,16 @@ public class EventDispatcher {
 		return listeners;
 	}
 
+	private static Map<BundleContext, List<ListenerInfo>> removeListenerInfo(Map<BundleContext, List<ListenerInfo>> listeners, ListenerInfo info) {
+		List<ListenerInfo> infos = listeners.get(info.getBundleContext());
+		for (int i = 0; (infos != null) && (i < infos.size()); i++) {
+			if (infos.get(i) == info) {
+				return removeListenerInfo(listeners, info.getBundleContext(), i);
+			}
+		}
+		return listeners;
+	}
+
 	private static Map<BundleContext, List<ListenerInfo>> removeListenerInfos(Map<BundleContext, List<ListenerInfo>> listeners, BundleContext bc) {
 		// Make a copy of the map, since we will be mutating it.
 		Map<BundleContext, List<ListenerInfo>> copy = new HashMap<BundleContext, List<ListenerInfo>>(listeners);
@@ -708,52 +1234,232 @@ public class EventDispatcher {
 	}
 
 	/**
-	 * This is the dispatching thread's main loop.
-	 *
+	 * Delivers the queued events of a single listener in order. A lane is
+	 * scheduled on the executor while it has events and is dropped once it
+	 * runs empty.
 	 */
-	private static void run() {
-		Request req = null;
-		while (true) {
-			// Lock the request list so we can try to get a
-			// dispatch request from it.
-			synchronized (m_requestList) {
-				// Wait while there are no requests to dispatch. If the
-				// dispatcher thread is supposed to stop, then let the
-				// dispatcher thread exit the loop and stop.
-				while (m_requestList.isEmpty() && !m_stopping) {
-					// Wait until some signals us for work.
-					try {
-						m_requestList.wait();
-					} catch (InterruptedException ex) {
-						// Not much we can do here except for keep waiting.
+	private class Lane implements Runnable {
+
+		private final EventListener m_listener;
+		private final Executor m_laneExecutor;
+		// The lanes this lane belongs to.
+		private final Map<EventListener, Lane> m_owner;
+		// Whether the events of this lane are counted in m_pending.
+		private final boolean m_counted;
+		// Guarded by m_lanes.
+		final List<Request> m_queue = new LinkedList<Request>();
+		boolean m_scheduled = false;
+
+		Lane(EventListener listener, Executor executor, Map<EventListener, Lane> owner) {
+			m_listener = listener;
+			m_laneExecutor = executor;
+			m_owner = owner;
+			m_counted = (owner == m_lanes);
+		}
+
+		void schedule() {
+			try {
+				m_laneExecutor.execute(this);
+			} catch (RejectedExecutionException ex) {
+				// The executor is gone, so these events can't be delivered.
+				synchronized (m_lanes) {
+					m_dropped.addAndGet(m_queue.size());
+					if (m_counted) {
+						m_pending -= m_queue.size();
+						queueDepthChanged();
 					}
+					m_queue.clear();
+					m_scheduled = false;
+					m_owner.remove(m_listener);
+					m_lanes.notifyAll();
 				}
+			}
+		}
 
-				// If there are no events to dispatch and shutdown
-				// has been called then exit, otherwise dispatch event.
-				if (m_requestList.isEmpty() && m_stopping) {
-					return;
+		@Override
+		public void run() {
+			m_dispatching.set(Boolean.TRUE);
+			try {
+				for (int i = 0; i < LANE_BATCH_SIZE; i++) {
+					Request req;
+					synchronized (m_lanes) {
+						if (m_queue.isEmpty()) {
+							m_scheduled = false;
+							m_owner.remove(m_listener);
+							return;
+						}
+						req = m_queue.remove(0);
+						if (m_counted) {
+							m_pending--;
+							queueDepthChanged();
+							m_lanes.notifyAll();
+						}
+					}
+					// Deliver event outside of synchronized block so that we
+					// don't block other requests from being queued during
+					// event processing.
+					deliverAsynchronously(req);
 				}
+			} finally {
+				m_dispatching.remove();
+			}
+			// Give other listeners a chance before delivering more.
+			schedule();
+		}
+	}
+
+	/**
+	 * Immutable index of service listeners by the objectClass values their
+	 * filters require. Listeners whose filter does not constrain objectClass
+	 * to a set of values are kept as wildcards.
+	 */
+	private static class ServiceListenerIndex {
 
-				// Get the dispatch request.
-				req = m_requestList.remove(0);
+		static final ServiceListenerIndex EMPTY = new ServiceListenerIndex(Collections.EMPTY_MAP, Collections.EMPTY_MAP);
+
+		private final Map<String, Map<BundleContext, List<ListenerInfo>>> m_byClass;
+		private final Map<BundleContext, List<ListenerInfo>> m_wildcards;
+
+		private ServiceListenerIndex(Map<String, Map<BundleContext, List<ListenerInfo>>> byClass, Map<BundleContext, List<ListenerInfo>> wildcards) {
+			m_byClass = byClass;
+			m_wildcards = wildcards;
+		}
+
+		ServiceListenerIndex add(ListenerInfo info) {
+			Set<String> classes = getObjectClasses(info.getParsedFilter());
+			if (classes == null) {
+				return new ServiceListenerIndex(m_byClass, addListenerInfo(m_wildcards, info));
+			}
+			Map<String, Map<BundleContext, List<ListenerInfo>>> byClass = new HashMap<String, Map<BundleContext, List<ListenerInfo>>>(m_byClass);
+			for (String clazz : classes) {
+				Map<BundleContext, List<ListenerInfo>> listeners = byClass.get(clazz);
+				byClass.put(clazz, addListenerInfo((listeners != null) ? listeners : Collections.EMPTY_MAP, info));
+			}
+			return new ServiceListenerIndex(byClass, m_wildcards);
+		}
+
+		ServiceListenerIndex remove(ListenerInfo info) {
+			Set<String> classes = getObjectClasses(info.getParsedFilter());
+			if (classes == null) {
+				return new ServiceListenerIndex(m_byClass, removeListenerInfo(m_wildcards, info));
 			}
+			Map<String, Map<BundleContext, List<ListenerInfo>>> byClass = new HashMap<String, Map<BundleContext, List<ListenerInfo>>>(m_byClass);
+			for (String clazz : classes) {
+				Map<BundleContext, List<ListenerInfo>> listeners = byClass.get(clazz);
+				if (listeners != null) {
+					listeners = removeListenerInfo(listeners, info);
+					if (listeners.isEmpty()) {
+						byClass.remove(clazz);
+					} else {
+						byClass.put(clazz, listeners);
+					}
+				}
+			}
+			return new ServiceListenerIndex(byClass, m_wildcards);
+		}
 
-			// Deliver event outside of synchronized block
-			// so that we don't block other requests from being
-			// queued during event processing.
-			// NOTE: We don't catch any exceptions here, because
-			// the invoked method shields us from exceptions by
-			// catching Throwables when it invokes callbacks.
-			fireEventImmediately(req.m_dispatcher, req.m_type, req.m_listeners, req.m_event, null);
+		/**
+		 * Returns the listeners which may be interested in a service with
+		 * the given objectClass values.
+		 */
+		Map<BundleContext, List<ListenerInfo>> getCandidates(String[] objectClass) {
+			if (objectClass == null) {
+				return m_wildcards;
+			}
+			// Avoid copying in the common case of a single matching bucket.
+			if (m_wildcards.isEmpty() && (objectClass.length == 1)) {
+				Map<BundleContext, List<ListenerInfo>> listeners = m_byClass.get(objectClass[0]);
+				return (listeners != null) ? listeners : Collections.EMPTY_MAP;
+			}
 
-			// Put dispatch request in cache.
-			synchronized (m_requestPool) {
-				req.m_dispatcher = null;
-				req.m_type = -1;
-				req.m_listeners = null;
-				req.m_event = null;
-				m_requestPool.add(req);
+			Map<BundleContext, List<ListenerInfo>> result = null;
+			for (int i = 0; i < objectClass.length; i++) {
+				Map<BundleContext, List<ListenerInfo>> listeners = m_byClass.get(objectClass[i]);
+				if (listeners != null) {
+					if (result == null) {
+						result = new HashMap<BundleContext, List<ListenerInfo>>();
+					}
+					merge(result, listeners);
+				}
+			}
+			if (result == null) {
+				return m_wildcards;
+			}
+			merge(result, m_wildcards);
+			return result;
+		}
+
+		private static void merge(Map<BundleContext, List<ListenerInfo>> result, Map<BundleContext, List<ListenerInfo>> listeners) {
+			for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet()) {
+				List<ListenerInfo> infos = result.get(entry.getKey());
+				if (infos == null) {
+					result.put(entry.getKey(), new ArrayList<ListenerInfo>(entry.getValue()));
+				} else {
+					// A listener requiring several of the objectClass values
+					// is in several buckets, so don't add it twice.
+					for (ListenerInfo info : entry.getValue()) {
+						if (!containsListenerInfo(infos, info)) {
+							infos.add(info);
+						}
+					}
+				}
+			}
+		}
+
+		private static boolean containsListenerInfo(List<ListenerInfo> infos, ListenerInfo info) {
+			for (int i = 0; i < infos.size(); i++) {
+				if (infos.get(i) == info) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the objectClass values of which a service must have at
+		 * least one to match the given filter, or null if the filter does not
+		 * constrain objectClass that way.
+		 */
+		private static Set<String> getObjectClasses(Filter filter) {
+			if (filter == null) {
+				return null;
+			}
+			try {
+				return getObjectClasses(SimpleFilter.parse(filter.toString()));
+			} catch (Exception ex) {
+				return null;
+			}
+		}
+
+		private static Set<String> getObjectClasses(SimpleFilter sf) {
+			switch (sf.getOperation()) {
+			case SimpleFilter.EQ:
+				return Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName()) ? Collections.singleton((String) sf.getValue()) : null;
+			case SimpleFilter.AND: {
+				// Any constraining operand will do; prefer the narrowest.
+				Set<String> result = null;
+				for (SimpleFilter child : (List<SimpleFilter>) sf.getValue()) {
+					Set<String> classes = getObjectClasses(child);
+					if ((classes != null) && ((result == null) || (classes.size() < result.size()))) {
+						result = classes;
+					}
+				}
+				return result;
+			}
+			case SimpleFilter.OR: {
+				// Every operand must constrain objectClass.
+				Set<String> result = new HashSet<String>();
+				for (SimpleFilter child : (List<SimpleFilter>) sf.getValue()) {
+					Set<String> classes = getObjectClasses(child);
+					if (classes == null) {
+						return null;
+					}
+					result.addAll(classes);
+				}
+				return result.isEmpty() ? null : result;
+			}
+			default:
+				return null;
 			}
 		}
 	}
@@ -763,9 +1469,36 @@ public class EventDispatcher {
 		public static final int FRAMEWORK_EVENT = 0;
 		public static final int BUNDLE_EVENT = 1;
 		public static final int SERVICE_EVENT = 2;
-		public EventDispatcher m_dispatcher = null;
-		public int m_type = -1;
-		public Map<BundleContext, List<ListenerInfo>> m_listeners = null;
-		public EventObject m_event = null;
+		// A service event already filtered for an isolated listener.
+		public static final int ISOLATED_SERVICE_EVENT = 3;
+		public final ListenerInfo m_info;
+		public final int m_type;
+		public final EventObject m_event;
+
+		Request(ListenerInfo info, int type, EventObject event) {
+			m_info = info;
+			m_type = type;
+			m_event = event;
+		}
+	}
+
+	// A MODIFIED event waiting for its window to pass.
+	private static class PendingModification {
+
+		final ServiceEvent m_event;
+		// The properties from before the first merged change.
+		final Dictionary m_oldProps;
+		final Framework m_felix;
+		// The following fields are guarded by m_modified.
+		// The thread delivering the event, null while it waits.
+		Thread m_deliverer = null;
+		// The merged changes made while the event is delivered.
+		PendingModification m_next = null;
+
+		PendingModification(ServiceEvent event, Dictionary oldProps, Framework felix) {
+			m_event = event;
+			m_oldProps = oldProps;
+			m_felix = felix;
+		}
 	}
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.felix.framework.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+import de.kalpatec.pojosr.framework.felix.framework.capabilityset.SimpleFilter;
+
+/**
+ * Bounded least recently used cache of parsed filters by filter string, held
+ * by each service registry. Filters are still created by
+ * {@link FrameworkUtil#createFilter(String)}, the cache only saves parsing
+ * the same string again. The {@link SimpleFilter} of a filter string used for
+ * index lookups is cached along. The cache is split into independently locked
+ * stripes, so that concurrent lookups of different filters rarely contend.
+ */
+public class FilterCache {
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static final int STRIPES = 16;
+
+	private final Map<String, CachedFilter>[] m_stripes;
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            The maximum number of cached filter strings, 0 to disable
+	 *            caching.
+	 */
+	public FilterCache(int capacity) {
+		int stripes = (capacity > 0) ? Math.min(STRIPES, capacity) : 0;
+		m_stripes = new Map[stripes];
+		for (int i = 0; i < stripes; i++) {
+			// Spread the capacity over the stripes, rounding up.
+			final int stripeCapacity = (capacity + stripes - 1) / stripes;
+			m_stripes[i] = new LinkedHashMap<String, CachedFilter>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedFilter> eldest) {
+					return size() > stripeCapacity;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Returns the filter for the given filter string, creating it only if it
+	 * is not cached yet.
+	 *
+	 * @param filter
+	 *            The filter string.
+	 * @return The filter as created by {@link FrameworkUtil#createFilter(String)}.
+	 * @throws InvalidSyntaxException
+	 *             If the filter string is invalid.
+	 */
+	public Filter getFilter(String filter) throws InvalidSyntaxException {
+		CachedFilter entry = lookup(filter);
+		Filter result = (entry != null) ? entry.m_filter : null;
+		if (result != null) {
+			m_hits.incrementAndGet();
+			return result;
+		}
+		// Parse outside of the lock; if another thread parsed the same
+		// filter in the meantime, either result is fine.
+		m_misses.incrementAndGet();
+		result = FrameworkUtil.createFilter(filter);
+		entry = store(filter);
+		if (entry != null) {
+			entry.m_filter = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the parsed form of the given filter string, parsing it only if
+	 * it is not cached yet.
+	 *
+	 * @param filter
+	 *            The filter string.
+	 * @return The parsed filter.
+	 * @throws InvalidSyntaxException
+	 *             If the filter string is invalid.
+	 */
+	public SimpleFilter getSimpleFilter(String filter) throws InvalidSyntaxException {
+		CachedFilter entry = lookup(filter);
+		SimpleFilter result = (entry != null) ? entry.m_simple : null;
+		if (result != null) {
+			m_hits.incrementAndGet();
+			return result;
+		}
+		m_misses.incrementAndGet();
+		try {
+			result = SimpleFilter.parse(filter);
+		} catch (Exception ex) {
+			throw new InvalidSyntaxException(ex.getMessage(), filter);
+		}
+		entry = store(filter);
+		if (entry != null) {
+			entry.m_simple = result;
+		}
+		return result;
+	}
+
+	private Map<String, CachedFilter> getStripe(String filter) {
+		if (filter == null) {
+			throw new NullPointerException("Filter cannot be null.");
+		}
+		return (m_stripes.length > 0) ? m_stripes[(filter.hashCode() & 0x7fffffff) % m_stripes.length] : null;
+	}
+
+	private CachedFilter lookup(String filter) {
+		Map<String, CachedFilter> stripe = getStripe(filter);
+		if (stripe == null) {
+			return null;
+		}
+		synchronized (stripe) {
+			return stripe.get(filter);
+		}
+	}
+
+	// Returns the entry to store a parsed filter in, null if caching is
+	// disabled. Only called after parsing succeeded, so that invalid filter
+	// strings are not cached.
+	private CachedFilter store(String filter) {
+		Map<String, CachedFilter> stripe = getStripe(filter);
+		if (stripe == null) {
+			return null;
+		}
+		synchronized (stripe) {
+			CachedFilter entry = stripe.get(filter);
+			if (entry == null) {
+				entry = new CachedFilter();
+				stripe.put(filter, entry);
+			}
+			return entry;
+		}
+	}
+
+	public long getHitCount() {
+		return m_hits.get();
+	}
+
+	public long getMissCount() {
+		return m_misses.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < m_stripes.length; i++) {
+			synchronized (m_stripes[i]) {
+				size += m_stripes[i].size();
+			}
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (int i = 0; i < m_stripes.length; i++) {
+			synchronized (m_stripes[i]) {
+				m_stripes[i].clear();
+			}
+		}
+	}
+
+	// The parsed forms of a filter string, each set when first asked for.
+	private static final class CachedFilter {
+		volatile Filter m_filter;
+		volatile SimpleFilter m_simple;
+	}
+}
@@ -31,6 +31,7 @@ public class ListenerInfo implements ListenerHook.ListenerInfo {
 	private final Filter m_filter;
 	private final Object m_acc;
 	private final boolean m_removed;
+	private final ListenerStatus m_status;
 
 	public ListenerInfo(Bundle bundle, BundleContext context, Class listenerClass, EventListener listener, Filter filter, Object acc, boolean removed) {
 		// Technically, we could get the bundle from the bundle context, but
@@ -43,16 +44,26 @@ public class ListenerInfo implements ListenerHook.ListenerInfo {
 		m_filter = filter;
 		m_acc = acc;
 		m_removed = removed;
+		m_status = new ListenerStatus();
 	}
 
 	public ListenerInfo(ListenerInfo info, boolean removed) {
+		this(info, info.m_filter, removed);
+	}
+
+	public ListenerInfo(ListenerInfo info, Filter filter) {
+		this(info, filter, info.m_removed);
+	}
+
+	private ListenerInfo(ListenerInfo info, Filter filter, boolean removed) {
 		m_bundle = info.m_bundle;
 		m_context = info.m_context;
 		m_listenerClass = info.m_listenerClass;
 		m_listener = info.m_listener;
-		m_filter = info.m_filter;
+		m_filter = filter;
 		m_acc = info.m_acc;
 		m_removed = removed;
+		m_status = info.m_status;
 	}
 
 	public Bundle getBundle() {
@@ -88,6 +99,10 @@ public class ListenerInfo implements ListenerHook.ListenerInfo {
 		return m_acc;
 	}
 
+	ListenerStatus getStatus() {
+		return m_status;
+	}
+
 	@Override
 	public boolean isRemoved() {
 		return m_removed;
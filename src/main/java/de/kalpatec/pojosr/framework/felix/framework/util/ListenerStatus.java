@@ -0,0 +1,31 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.felix.framework.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivery state of a listener, shared by the {@link ListenerInfo}s of the
+ * listener as its filter is updated.
+ */
+class ListenerStatus {
+
+	// Number of deliveries that took longer than the slow listener
+	// threshold.
+	final AtomicInteger m_slowDeliveries = new AtomicInteger();
+	// Whether service events are delivered to the listener asynchronously.
+	volatile boolean m_isolated = false;
+}
@@ -27,14 +27,14 @@ import java.util.Map;
  * <tt>Map</tt>. The resulting dictionary is immutable.
  *
  */
-public class MapToDictionary extends Dictionary<String, String> {
+public class MapToDictionary<K, V> extends Dictionary<K, V> {
 	/**
 	 * Map source.
 	 *
 	 */
-	private Map<String, String> m_map = null;
+	private Map<K, V> m_map = null;
 
-	public MapToDictionary(Map<String, String> map) {
+	public MapToDictionary(Map<K, V> map) {
 		if (map == null) {
 			throw new IllegalArgumentException("Source map cannot be null.");
 		}
@@ -42,12 +42,12 @@ public class MapToDictionary extends Dictionary<String, String> {
 	}
 
 	@Override
-	public Enumeration<String> elements() {
+	public Enumeration<V> elements() {
 		return Collections.enumeration(m_map.values());
 	}
 
 	@Override
-	public String get(Object key) {
+	public V get(Object key) {
 		return m_map.get(key);
 	}
 
@@ -57,17 +57,17 @@ public class MapToDictionary extends Dictionary<String, String> {
 	}
 
 	@Override
-	public Enumeration<String> keys() {
+	public Enumeration<K> keys() {
 		return Collections.enumeration(m_map.keySet());
 	}
 
 	@Override
-	public String put(String key, String value) {
+	public V put(K key, V value) {
 		throw new UnsupportedOperationException();
 	}
 
 	@Override
-	public String remove(Object key) {
+	public V remove(Object key) {
 		throw new UnsupportedOperationException();
 	}
 
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.felix.framework.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable map of service properties with case-insensitive string keys.
+ * Keys are kept in an open-addressed hash table, so that lookups neither walk
+ * a tree nor allocate. Keys keep their original case and insertion order for
+ * iteration. Instances are never modified, a registration publishes a new
+ * table when its properties change.
+ */
+public final class PropertyTable extends AbstractMap<String, Object> {
+
+	// Lower-cased keys shared by all tables; property keys are usually a
+	// small set, keys beyond the limit are simply not shared.
+	private static final ConcurrentMap<String, String> s_lowerKeys = new ConcurrentHashMap<String, String>();
+	private static final int MAX_SHARED_KEYS = 4096;
+
+	private final String[] m_keys;
+	private final String[] m_lowerKeys;
+	private final Object[] m_values;
+	private final int[] m_hashes;
+	// Index + 1 of the key in each slot, 0 for an empty slot.
+	private final int[] m_slots;
+	private Set<Map.Entry<String, Object>> m_entrySet;
+
+	/**
+	 * @param keys
+	 *            The keys in iteration order.
+	 * @param values
+	 *            The values of the keys at the same index.
+	 * @throws IllegalArgumentException
+	 *             If two keys only differ in case.
+	 */
+	public PropertyTable(String[] keys, Object[] values) {
+		m_keys = keys.clone();
+		m_values = values.clone();
+		m_lowerKeys = new String[m_keys.length];
+		m_hashes = new int[m_keys.length];
+		// Keep the table at most half full.
+		int capacity = 2;
+		while (capacity < m_keys.length * 2) {
+			capacity <<= 1;
+		}
+		m_slots = new int[capacity];
+		for (int i = 0; i < m_keys.length; i++) {
+			m_lowerKeys[i] = intern(m_keys[i].toLowerCase(Locale.ENGLISH));
+			m_hashes[i] = hash(m_keys[i]);
+			if (indexOf(m_keys[i], m_hashes[i]) >= 0) {
+				throw new IllegalArgumentException("Duplicate service property: " + m_keys[i]);
+			}
+			int slot = m_hashes[i] & (m_slots.length - 1);
+			while (m_slots[slot] != 0) {
+				slot = (slot + 1) & (m_slots.length - 1);
+			}
+			m_slots[slot] = i + 1;
+		}
+	}
+
+	private static String intern(String key) {
+		String existing = s_lowerKeys.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		if (s_lowerKeys.size() >= MAX_SHARED_KEYS) {
+			// Still found by hash, just not by identity.
+			return key;
+		}
+		existing = s_lowerKeys.putIfAbsent(key, key);
+		return (existing != null) ? existing : key;
+	}
+
+	// Case-insensitive hash, consistent with String.equalsIgnoreCase().
+	private static int hash(String key) {
+		int h = 0;
+		for (int i = 0; i < key.length(); i++) {
+			h = 31 * h + Character.toLowerCase(Character.toUpperCase(key.charAt(i)));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private int indexOf(String key, int hash) {
+		int slot = hash & (m_slots.length - 1);
+		for (int idx = m_slots[slot]; idx != 0; idx = m_slots[slot]) {
+			int i = idx - 1;
+			if ((m_keys[i] == key) || (m_lowerKeys[i] == key) || ((m_hashes[i] == hash) && m_keys[i].equalsIgnoreCase(key))) {
+				return i;
+			}
+			slot = (slot + 1) & (m_slots.length - 1);
+		}
+		return -1;
+	}
+
+	private int indexOf(Object key) {
+		return (key instanceof String) ? indexOf((String) key, hash((String) key)) : -1;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int i = indexOf(key);
+		return (i >= 0) ? m_values[i] : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return m_keys.length;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return m_keys.length == 0;
+	}
+
+	/**
+	 * @return A copy of the keys in their original case.
+	 */
+	public String[] getKeys() {
+		return m_keys.clone();
+	}
+
+	/**
+	 * Returns the keys in their original case without copying them, for
+	 * callers which don't hand them out.
+	 *
+	 * @return The keys, which must not be modified.
+	 */
+	public String[] getSharedKeys() {
+		return m_keys;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if (m_entrySet == null) {
+			m_entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new Iterator<Map.Entry<String, Object>>() {
+						private int m_index = 0;
+
+						@Override
+						public boolean hasNext() {
+							return m_index < m_keys.length;
+						}
+
+						@Override
+						public Map.Entry<String, Object> next() {
+							if (m_index >= m_keys.length) {
+								throw new NoSuchElementException();
+							}
+							Map.Entry<String, Object> entry = new SimpleImmutableEntry<String, Object>(m_keys[m_index], m_values[m_index]);
+							m_index++;
+							return entry;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException("Property tables are immutable.");
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return m_keys.length;
+				}
+			};
+		}
+		return m_entrySet;
+	}
+}
@@ -15,21 +15,79 @@
  */
 package de.kalpatec.pojosr.framework.launch;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
 
 import de.kalpatec.pojosr.framework.felix.framework.util.MapToDictionary;
 
+/**
+ * Scans a class loader for bundle manifests. The manifests are read and
+ * parsed on the calling thread unless a parallelism greater than one is given,
+ * in which case they are processed on that many threads. Either way, the
+ * descriptors are returned in classpath order.
+ * <p>
+ * Parsed headers of manifests read from local files are kept in a
+ * {@link ManifestCache}, by default inside the framework storage directory,
+ * so that later scans only parse the manifests that changed.
+ */
 public class ClasspathScanner {
 
+	private final int m_parallelism;
+	private final ManifestCache m_cache;
+
+	public ClasspathScanner() {
+		this(1);
+	}
+
+	/**
+	 * @param parallelism
+	 *            number of threads reading and parsing manifests
+	 */
+	public ClasspathScanner(int parallelism) {
+		this(parallelism, ManifestCache.getDefault());
+	}
+
+	/**
+	 * @param parallelism
+	 *            number of threads reading and parsing manifests
+	 * @param cache
+	 *            the manifest cache to use, null to disable caching
+	 */
+	public ClasspathScanner(int parallelism, ManifestCache cache) {
+		m_parallelism = parallelism;
+		m_cache = cache;
+	}
+
+	/**
+	 * @return the manifest cache or null if caching is disabled
+	 */
+	public ManifestCache getCache() {
+		return m_cache;
+	}
+
 	public List<BundleDescriptor> scanForBundles() throws Exception {
 		return scanForBundles(null, null);
 	}
@@ -43,104 +101,260 @@ public class ClasspathScanner {
 	}
 
 	public List<BundleDescriptor> scanForBundles(String filterString, ClassLoader loader) throws Exception {
-		Filter filter = (filterString != null) ? FrameworkUtil.createFilter(filterString) : null;
+		final Filter filter = (filterString != null) ? FrameworkUtil.createFilter(filterString) : null;
 
-		loader = (loader != null) ? loader : getClass().getClassLoader();
+		final ClassLoader scanLoader = (loader != null) ? loader : getClass().getClassLoader();
 
+		List<URL> manifestURLs = Collections.list(scanLoader.getResources("META-INF/MANIFEST.MF"));
 		List<BundleDescriptor> bundles = new ArrayList<BundleDescriptor>();
-		byte[] bytes = new byte[1024 * 1024 * 2];
-		for (Enumeration<URL> e = loader.getResources("META-INF/MANIFEST.MF"); e.hasMoreElements();) {
-			URL manifestURL = e.nextElement();
-			InputStream input = null;
+		if ((m_parallelism <= 1) || (manifestURLs.size() <= 1)) {
+			for (URL manifestURL : manifestURLs) {
+				BundleDescriptor descriptor = scan(manifestURL, filter, scanLoader);
+				if (descriptor != null) {
+					bundles.add(descriptor);
+				}
+			}
+		} else {
+			scanConcurrently(manifestURLs, filter, scanLoader, bundles);
+		}
+
+		if (m_cache != null) {
+			// Other scans may share the cache, so only drop the entries of
+			// files which are gone rather than all this loader didn't return.
+			m_cache.removeMissing();
 			try {
-				input = manifestURL.openStream();
-				int size = 0;
-				for (int i = input.read(bytes); i != -1; i = input.read(bytes, size, bytes.length - size)) {
-					size += i;
-					if (size == bytes.length) {
-						byte[] tmp = new byte[size * 2];
-						System.arraycopy(bytes, 0, tmp, 0, bytes.length);
-						bytes = tmp;
+				m_cache.save();
+			} catch (IOException ex) {
+				System.out.println("Unable to write manifest cache: " + ex.getMessage());
+			}
+		}
+		return bundles;
+	}
+
+	private void scanConcurrently(List<URL> manifestURLs, final Filter filter, final ClassLoader scanLoader, List<BundleDescriptor> bundles) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(m_parallelism, manifestURLs.size()), new ThreadFactory() {
+			private final AtomicInteger m_count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PojoSRScanner-" + m_count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<BundleDescriptor>> futures = new ArrayList<Future<BundleDescriptor>>(manifestURLs.size());
+			for (final URL manifestURL : manifestURLs) {
+				futures.add(executor.submit(new Callable<BundleDescriptor>() {
+					@Override
+					public BundleDescriptor call() throws Exception {
+						return scan(manifestURL, filter, scanLoader);
 					}
+				}));
+			}
+			// Collect in classpath order.
+			for (Future<BundleDescriptor> future : futures) {
+				BundleDescriptor descriptor;
+				try {
+					descriptor = future.get();
+				} catch (ExecutionException ex) {
+					throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+				}
+				if (descriptor != null) {
+					bundles.add(descriptor);
 				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-				// Now parse the main attributes. The idea is to do that
-				// without creating new byte arrays. Therefore, we read through
-				// the manifest bytes inside the bytes array and write them back
-				// into
-				// the same array unless we don't need them (e.g., \r\n and \n
-				// are skipped).
-				// That allows us to create the strings from the bytes array
-				// without the skipped
-				// chars. We stopp as soon as we see a blankline as that denotes
-				// that the main
-				// attributes part is finished.
-				String key = null;
-				int last = 0;
-				int current = 0;
-
-				Map<String, String> headers = new HashMap<String, String>();
-				for (int i = 0; i < size; i++) {
-					// skip \r and \n if it is follows by another \n
-					// (we catch the blank line case in the next iteration)
-					if (bytes[i] == '\r') {
-						if ((i + 1 < size) && (bytes[i + 1] == '\n')) {
-							continue;
-						}
-					}
-					if (bytes[i] == '\n') {
-						if ((i + 1 < size) && (bytes[i + 1] == ' ')) {
-							i++;
-							continue;
-						}
-					}
-					// If we don't have a key yet and see the first : we parse
-					// it as the key
-					// and skip the :<blank> that follows it.
-					if ((key == null) && (bytes[i] == ':')) {
-						key = new String(bytes, last, (current - last), "UTF-8");
-						if ((i + 1 < size) && (bytes[i + 1] == ' ')) {
-							last = current + 1;
-							continue;
-						} else {
-							throw new Exception("Manifest error: Missing space separator - " + key);
-						}
-					}
-					// if we are at the end of a line
-					if (bytes[i] == '\n') {
-						// and it is a blank line stop parsing (main attributes
-						// are done)
-						if ((last == current) && (key == null)) {
-							break;
-						}
-						// Otherwise, parse the value and add it to the map (we
-						// throw an
-						// exception if we don't have a key or the key already
-						// exist.
-						String value = new String(bytes, last, (current - last), "UTF-8");
-						if (key == null) {
-							throw new Exception("Manifst error: Missing attribute name - " + value);
-						} else if (headers.put(key, value) != null) {
-							throw new Exception("Manifst error: Duplicate attribute name - " + key);
-						}
-						last = current;
-						key = null;
-					} else {
-						// write back the byte if it needs to be included in the
-						// key or the value.
-						bytes[current++] = bytes[i];
+	private BundleDescriptor scan(URL manifestURL, Filter filter, ClassLoader loader) throws Exception {
+		Map<String, String> headers;
+		File source = (m_cache != null) ? getSourceFile(manifestURL) : null;
+		if (source != null) {
+			// Take the file state before reading, so that a concurrent change
+			// makes the entry outdated rather than hiding it.
+			long length = source.length();
+			long lastModified = source.lastModified();
+			String key = manifestURL.toExternalForm();
+			headers = m_cache.get(key, length, lastModified);
+			if (headers == null) {
+				headers = parseManifest(readManifest(manifestURL));
+				m_cache.put(key, source, length, lastModified, headers);
+			}
+		} else {
+			headers = parseManifest(readManifest(manifestURL));
+		}
+		if ((filter == null) || filter.match(new MapToDictionary<String, String>(headers))) {
+			return new BundleDescriptor(loader, getParentURL(manifestURL), headers);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the manifest at the given URL. Manifests of directories and jar
+	 * files on the local file system are read directly, all others through
+	 * the URL.
+	 */
+	private static byte[] readManifest(URL manifestURL) throws Exception {
+		File file = getSourceFile(manifestURL);
+		if ((file != null) && "file".equals(manifestURL.getProtocol())) {
+			FileInputStream input = new FileInputStream(file);
+			try {
+				FileChannel channel = input.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) == -1) {
+						throw new IOException("Unexpected end of manifest: " + file);
 					}
 				}
-				if ((filter == null) || filter.match(new MapToDictionary(headers))) {
-					bundles.add(new BundleDescriptor(loader, getParentURL(manifestURL), headers));
+				return buffer.array();
+			} finally {
+				input.close();
+			}
+		} else if (file != null) {
+			String path = manifestURL.getPath();
+			ZipFile zip = new ZipFile(file);
+			try {
+				ZipEntry entry = zip.getEntry(path.substring(path.indexOf("!/") + 2));
+				if (entry != null) {
+					return read(zip.getInputStream(entry), (entry.getSize() >= 0) ? (int) entry.getSize() : 8192);
 				}
 			} finally {
-				if (input != null) {
-					input.close();
+				zip.close();
+			}
+		}
+		return read(manifestURL.openStream(), 8192);
+	}
+
+	/**
+	 * Returns the local file a manifest is read from, i.e. the manifest file
+	 * of a directory or the jar file containing it.
+	 *
+	 * @return the file or null if the manifest is not read from a local file
+	 */
+	private static File getSourceFile(URL manifestURL) {
+		String protocol = manifestURL.getProtocol();
+		if ("file".equals(protocol)) {
+			return toFile(manifestURL.toExternalForm());
+		} else if ("jar".equals(protocol)) {
+			String path = manifestURL.getPath();
+			int separator = path.indexOf("!/");
+			// Nested jars are read through the URL.
+			if ((separator > 0) && (path.indexOf("!/", separator + 2) < 0)) {
+				return toFile(path.substring(0, separator));
+			}
+		}
+		return null;
+	}
+
+	private static File toFile(String url) {
+		if (!url.startsWith("file:")) {
+			return null;
+		}
+		try {
+			File file = new File(new URI(url));
+			return file.isFile() ? file : null;
+		} catch (Exception ex) {
+			// Not a plain local file, use the URL instead.
+			return null;
+		}
+	}
+
+	private static byte[] read(InputStream input, int sizeHint) throws IOException {
+		try {
+			byte[] bytes = new byte[Math.max(sizeHint, 1)];
+			int size = 0;
+			for (int i = input.read(bytes); i != -1; i = input.read(bytes, size, bytes.length - size)) {
+				size += i;
+				if (size == bytes.length) {
+					byte[] tmp = new byte[size * 2];
+					System.arraycopy(bytes, 0, tmp, 0, bytes.length);
+					bytes = tmp;
 				}
 			}
+			if (size < bytes.length) {
+				byte[] tmp = new byte[size];
+				System.arraycopy(bytes, 0, tmp, 0, size);
+				bytes = tmp;
+			}
+			return bytes;
+		} finally {
+			input.close();
 		}
-		return bundles;
+	}
+
+	private static Map<String, String> parseManifest(byte[] bytes) throws Exception {
+		int size = bytes.length;
+		// Now parse the main attributes. The idea is to do that
+		// without creating new byte arrays. Therefore, we read through
+		// the manifest bytes inside the bytes array and write them back
+		// into
+		// the same array unless we don't need them (e.g., \r\n and \n
+		// are skipped).
+		// That allows us to create the strings from the bytes array
+		// without the skipped
+		// chars. We stopp as soon as we see a blankline as that denotes
+		// that the main
+		// attributes part is finished.
+		String key = null;
+		int last = 0;
+		int current = 0;
+
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 0; i < size; i++) {
+			// skip \r and \n if it is follows by another \n
+			// (we catch the blank line case in the next iteration)
+			if (bytes[i] == '\r') {
+				if ((i + 1 < size) && (bytes[i + 1] == '\n')) {
+					continue;
+				}
+			}
+			if (bytes[i] == '\n') {
+				if ((i + 1 < size) && (bytes[i + 1] == ' ')) {
+					i++;
+					continue;
+				}
+			}
+			// If we don't have a key yet and see the first : we parse
+			// it as the key
+			// and skip the :<blank> that follows it.
+			if ((key == null) && (bytes[i] == ':')) {
+				key = new String(bytes, last, (current - last), "UTF-8");
+				if ((i + 1 < size) && (bytes[i + 1] == ' ')) {
+					last = current + 1;
+					continue;
+				} else {
+					throw new Exception("Manifest error: Missing space separator - " + key);
+				}
+			}
+			// if we are at the end of a line
+			if (bytes[i] == '\n') {
+				// and it is a blank line stop parsing (main attributes
+				// are done)
+				if ((last == current) && (key == null)) {
+					break;
+				}
+				// Otherwise, parse the value and add it to the map (we
+				// throw an
+				// exception if we don't have a key or the key already
+				// exist.
+				String value = new String(bytes, last, (current - last), "UTF-8");
+				if (key == null) {
+					throw new Exception("Manifst error: Missing attribute name - " + value);
+				} else if (headers.put(key, value) != null) {
+					throw new Exception("Manifst error: Duplicate attribute name - " + key);
+				}
+				last = current;
+				key = null;
+			} else {
+				// write back the byte if it needs to be included in the
+				// key or the value.
+				bytes[current++] = bytes[i];
+			}
+		}
+		return headers;
 	}
 
 	private URL getParentURL(URL url) throws Exception {
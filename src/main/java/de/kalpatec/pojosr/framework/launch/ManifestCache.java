@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.launch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Constants;
+
+/**
+ * Persistent cache of parsed manifest headers used by
+ * {@link ClasspathScanner}. Entries are keyed by manifest URL and hold the
+ * size and modification time of the file the manifest was read from, i.e.
+ * the jar file or the manifest file itself. An entry is only used while that
+ * file is unchanged.
+ */
+public class ManifestCache {
+
+	/**
+	 * Name of the cache file inside the framework storage directory.
+	 */
+	public static final String CACHE_FILE_NAME = "pojosr-manifests.cache";
+
+	private static final int MAGIC = 0x504d4331; // PMC1
+	private static final int VERSION = 1;
+
+	private final File m_file;
+	private final ConcurrentMap<String, Entry> m_entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private volatile boolean m_loaded = false;
+	private volatile boolean m_dirty = false;
+
+	/**
+	 * Returns the cache inside the framework storage directory given by the
+	 * {@link Constants#FRAMEWORK_STORAGE} system property.
+	 *
+	 * @return The cache or null if no storage directory is set.
+	 */
+	public static ManifestCache getDefault() {
+		return forStorage(System.getProperty(Constants.FRAMEWORK_STORAGE));
+	}
+
+	/**
+	 * @param storage
+	 *            The framework storage directory, may be null.
+	 * @return The cache inside the given directory or null if none is given.
+	 */
+	public static ManifestCache forStorage(String storage) {
+		return (storage != null) ? new ManifestCache(new File(storage, CACHE_FILE_NAME)) : null;
+	}
+
+	public ManifestCache(File file) {
+		m_file = file;
+	}
+
+	public File getFile() {
+		return m_file;
+	}
+
+	/**
+	 * Returns a copy of the cached headers of the given manifest.
+	 *
+	 * @param manifestURL
+	 *            The manifest URL.
+	 * @param length
+	 *            The current size of the file the manifest is read from.
+	 * @param lastModified
+	 *            The current modification time of that file.
+	 * @return The headers or null if missing or outdated.
+	 */
+	public Map<String, String> get(String manifestURL, long length, long lastModified) {
+		load();
+		Entry entry = m_entries.get(manifestURL);
+		if ((entry != null) && (entry.m_length == length) && (entry.m_lastModified == lastModified)) {
+			m_hits.incrementAndGet();
+			return new HashMap<String, String>(entry.m_headers);
+		}
+		m_misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(String manifestURL, File source, long length, long lastModified, Map<String, String> headers) {
+		load();
+		m_entries.put(manifestURL, new Entry(source, length, lastModified, new HashMap<String, String>(headers)));
+		m_dirty = true;
+	}
+
+	/**
+	 * Removes the entries whose files no longer exist. Entries of other
+	 * class loaders sharing the cache are kept as long as their files do.
+	 *
+	 * @return The number of removed entries.
+	 */
+	public int removeMissing() {
+		load();
+		int removed = 0;
+		for (Iterator<Entry> it = m_entries.values().iterator(); it.hasNext();) {
+			if (!it.next().m_source.exists()) {
+				it.remove();
+				removed++;
+			}
+		}
+		if (removed > 0) {
+			m_dirty = true;
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the entries whose files changed or disappeared since they were
+	 * cached and writes the cache if anything was removed.
+	 *
+	 * @return The number of removed entries.
+	 * @throws IOException
+	 *             If the cache cannot be written.
+	 */
+	public int validate() throws IOException {
+		load();
+		int removed = 0;
+		for (Iterator<Entry> it = m_entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if ((entry.m_source.length() != entry.m_length) || (entry.m_source.lastModified() != entry.m_lastModified)) {
+				it.remove();
+				removed++;
+			}
+		}
+		if (removed > 0) {
+			m_dirty = true;
+			save();
+		}
+		return removed;
+	}
+
+	/**
+	 * Drops all entries and deletes the cache file, so that the next scan
+	 * reparses all manifests and writes a new cache.
+	 */
+	public void rebuild() {
+		m_entries.clear();
+		m_loaded = true;
+		m_dirty = false;
+		m_file.delete();
+	}
+
+	public int size() {
+		load();
+		return m_entries.size();
+	}
+
+	public long getHitCount() {
+		return m_hits.get();
+	}
+
+	public long getMissCount() {
+		return m_misses.get();
+	}
+
+	/**
+	 * Writes the cache if it changed since it was loaded or last written.
+	 *
+	 * @throws IOException
+	 *             If the cache cannot be written.
+	 */
+	public synchronized void save() throws IOException {
+		if (!m_dirty) {
+			return;
+		}
+		m_dirty = false;
+		File dir = m_file.getAbsoluteFile().getParentFile();
+		if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create directory: " + dir);
+		}
+		// Write to a temporary file first, so that readers never see a
+		// partially written cache.
+		File tmp = new File(m_file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			Map<String, Entry> entries = new HashMap<String, Entry>(m_entries);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				writeString(out, e.getKey());
+				writeString(out, entry.m_source.getPath());
+				out.writeLong(entry.m_length);
+				out.writeLong(entry.m_lastModified);
+				out.writeInt(entry.m_headers.size());
+				for (Map.Entry<String, String> header : entry.m_headers.entrySet()) {
+					writeString(out, header.getKey());
+					writeString(out, header.getValue());
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(m_file)) {
+			m_file.delete();
+			if (!tmp.renameTo(m_file)) {
+				tmp.delete();
+				m_dirty = true;
+				throw new IOException("Unable to write manifest cache: " + m_file);
+			}
+		}
+	}
+
+	private void load() {
+		if (m_loaded) {
+			return;
+		}
+		synchronized (this) {
+			if (m_loaded) {
+				return;
+			}
+			if (m_file.isFile()) {
+				try {
+					read();
+				} catch (IOException ex) {
+					// Start over if the cache is unreadable or from another
+					// version.
+					m_entries.clear();
+					m_dirty = true;
+				} catch (RuntimeException ex) {
+					// Also if it is corrupt in a way not detected while
+					// reading it.
+					m_entries.clear();
+					m_dirty = true;
+				}
+			}
+			m_loaded = true;
+		}
+	}
+
+	private void read() throws IOException {
+		// No count or length can exceed the size of the file, so that a
+		// corrupt cache can't make us allocate huge arrays.
+		long size = m_file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+		try {
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+				throw new IOException("Unknown manifest cache format: " + m_file);
+			}
+			for (int i = readLength(in, size); i > 0; i--) {
+				String url = readString(in, size);
+				File source = new File(readString(in, size));
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				int count = readLength(in, size);
+				Map<String, String> headers = new HashMap<String, String>(count * 2);
+				for (int j = 0; j < count; j++) {
+					headers.put(readString(in, size), readString(in, size));
+				}
+				m_entries.put(url, new Entry(source, length, lastModified, headers));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Unlike writeUTF(), not limited to 64k, as e.g. Export-Package headers
+	// can be longer.
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in, long max) throws IOException {
+		byte[] bytes = new byte[readLength(in, max)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static int readLength(DataInputStream in, long max) throws IOException {
+		int length = in.readInt();
+		if ((length < 0) || (length > max)) {
+			throw new IOException("Corrupt manifest cache, invalid length: " + length);
+		}
+		return length;
+	}
+
+	private static final class Entry {
+		final File m_source;
+		final long m_length;
+		final long m_lastModified;
+		final Map<String, String> m_headers;
+
+		Entry(File source, long length, long lastModified, Map<String, String> headers) {
+			m_source = source;
+			m_length = length;
+			m_lastModified = lastModified;
+			m_headers = headers;
+		}
+	}
+}
@@ -21,6 +21,101 @@ import java.util.Map;
 
 public interface PojoServiceRegistryFactory {
 	public static final String BUNDLE_DESCRIPTORS = PojoServiceRegistry.class.getName().toLowerCase() + ".bundles";
+	/**
+	 * Service properties to index in addition to objectClass and
+	 * service.ranking, either as a comma separated String, a String array or
+	 * a collection of Strings.
+	 */
+	public static final String SERVICE_INDEX_PROPERTIES = PojoServiceRegistry.class.getName().toLowerCase() + ".service.index";
+	/**
+	 * Number of equality lookups on an unindexed service property after which
+	 * the property gets indexed. Disabled if missing or zero.
+	 */
+	public static final String SERVICE_INDEX_ADAPTIVE_THRESHOLD = PojoServiceRegistry.class.getName().toLowerCase() + ".service.index.adaptive";
+	/**
+	 * {@link java.util.concurrent.Executor} delivering asynchronous bundle
+	 * and framework events. Defaults to a thread of the registry's own.
+	 */
+	public static final String EVENT_EXECUTOR = PojoServiceRegistry.class.getName().toLowerCase() + ".events.executor";
+	/**
+	 * Maximum number of undelivered asynchronous events.
+	 */
+	public static final String EVENT_QUEUE_CAPACITY = PojoServiceRegistry.class.getName().toLowerCase() + ".events.capacity";
+	/**
+	 * What to do with asynchronous events while the queue is full, either
+	 * "block" the thread firing them (default) or "drop" them.
+	 */
+	public static final String EVENT_QUEUE_OVERFLOW = PojoServiceRegistry.class.getName().toLowerCase() + ".events.overflow";
+	/**
+	 * Milliseconds after which delivering an event to a listener is slow.
+	 * Listeners are not timed if missing or zero.
+	 */
+	public static final String EVENT_SLOW_THRESHOLD = PojoServiceRegistry.class.getName().toLowerCase() + ".events.slow.threshold";
+	/**
+	 * Number of slow deliveries after which a listener is reported with a
+	 * {@link org.osgi.framework.FrameworkEvent#WARNING}. Defaults to 3.
+	 */
+	public static final String EVENT_SLOW_LIMIT = PojoServiceRegistry.class.getName().toLowerCase() + ".events.slow.limit";
+	/**
+	 * Whether to deliver service events to reported service listeners
+	 * asynchronously on threads of their own, "true" or "false" (default).
+	 */
+	public static final String EVENT_SLOW_ISOLATE = PojoServiceRegistry.class.getName().toLowerCase() + ".events.slow.isolate";
+	/**
+	 * Milliseconds during which repeated MODIFIED events of a service are
+	 * merged into a single event, delivered when the window has passed.
+	 * Events are not merged if missing or zero.
+	 */
+	public static final String EVENT_COALESCE_WINDOW = PojoServiceRegistry.class.getName().toLowerCase() + ".events.coalesce.window";
+	/**
+	 * Number of threads starting bundles concurrently. Bundles are started one
+	 * after another if missing or not greater than one.
+	 */
+	public static final String START_PARALLELISM = PojoServiceRegistry.class.getName().toLowerCase() + ".start.parallelism";
+	/**
+	 * Whether bundles are started with their activation policy, "true" or
+	 * "false" (default). Bundles declaring the lazy activation policy are
+	 * then only activated when a class is loaded through
+	 * {@link org.osgi.framework.Bundle#loadClass(String)} or one of their
+	 * services is obtained. All bundles share the class loader of the
+	 * classpath, so loading their classes in any other way doesn't activate
+	 * them.
+	 */
+	public static final String START_LAZY = PojoServiceRegistry.class.getName().toLowerCase() + ".start.lazy";
+	/**
+	 * Number of threads reading and parsing bundle manifests when the
+	 * framework scans the classpath. Manifests are read one after another if
+	 * missing or not greater than one.
+	 */
+	public static final String SCAN_PARALLELISM = PojoServiceRegistry.class.getName().toLowerCase() + ".scan.parallelism";
+	/**
+	 * Whether to read uncompressed entries of jar bundles from a
+	 * memory-mapped view of the jar, "true" or "false" (default).
+	 */
+	public static final String JAR_MAPPED_ENTRIES = PojoServiceRegistry.class.getName().toLowerCase() + ".jar.mapped";
+	/**
+	 * Milliseconds between checks whether the cached listing of a bundle
+	 * directory is outdated, 0 to check on every access. Defaults to 1000.
+	 */
+	public static final String DIR_CHECK_INTERVAL = PojoServiceRegistry.class.getName().toLowerCase() + ".dir.check.interval";
+	/**
+	 * {@link de.kalpatec.pojosr.framework.metrics.RegistryMetrics} receiving
+	 * measurements of the registry, or "true" to use a
+	 * {@link de.kalpatec.pojosr.framework.metrics.DefaultRegistryMetrics}.
+	 * Nothing is measured if missing. The metrics are registered as a
+	 * service and, if they are an MXBean, with the platform MBean server.
+	 */
+	public static final String METRICS = PojoServiceRegistry.class.getName().toLowerCase() + ".metrics";
+	/**
+	 * Maximum number of parsed filter strings kept by the registry, 0 to
+	 * parse each filter again. Defaults to 256.
+	 */
+	public static final String FILTER_CACHE_SIZE = PojoServiceRegistry.class.getName().toLowerCase() + ".filter.cache.size";
+	/**
+	 * Manifest header holding the start level of a bundle, 1 if missing.
+	 * Bundles with lower start levels are started first.
+	 */
+	public static final String START_LEVEL_HEADER = "PojoSR-StartLevel";
 
 	public PojoServiceRegistry newPojoServiceRegistry(Map<String, Object> configuration) throws Exception;
 }
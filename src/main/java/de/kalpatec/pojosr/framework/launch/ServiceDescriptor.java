@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.launch;
+
+import java.util.Dictionary;
+
+/**
+ * A service to register with
+ * {@link PojoServiceRegistry#registerServices(java.util.List)}.
+ */
+public class ServiceDescriptor {
+
+	private final String[] m_classes;
+	private final Object m_service;
+	private final Dictionary m_properties;
+
+	public ServiceDescriptor(String[] classes, Object service, Dictionary properties) {
+		m_classes = classes;
+		m_service = service;
+		m_properties = properties;
+	}
+
+	public ServiceDescriptor(String clazz, Object service, Dictionary properties) {
+		this(new String[] { clazz }, service, properties);
+	}
+
+	public String[] getClasses() {
+		return m_classes;
+	}
+
+	public Object getService() {
+		return m_service;
+	}
+
+	public Dictionary getProperties() {
+		return m_properties;
+	}
+}
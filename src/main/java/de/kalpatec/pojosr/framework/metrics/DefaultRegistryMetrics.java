@@ -0,0 +1,147 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.metrics;
+
+import java.util.EventListener;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RegistryMetrics} keeping histograms and counters in memory, readable
+ * through {@link RegistryMetricsMXBean}. Listener dispatch times are kept by
+ * listener class, so that the number of histograms stays bounded.
+ */
+public class DefaultRegistryMetrics implements RegistryMetrics, RegistryMetricsMXBean {
+
+	private final Histogram m_lookupLatency = new Histogram();
+	private final Histogram m_lockWait = new Histogram();
+	private final Histogram m_listenerDispatch = new Histogram();
+	private final ConcurrentMap<String, Histogram> m_listenerDispatchByClass = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, AtomicLong> m_registrations = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicInteger m_maxQueueDepth = new AtomicInteger();
+	private volatile int m_queueDepth = 0;
+
+	@Override
+	public void serviceReferencesLookedUp(long nanos) {
+		m_lookupLatency.record(nanos);
+	}
+
+	@Override
+	public void registrationLockWaited(long nanos) {
+		m_lockWait.record(nanos);
+	}
+
+	@Override
+	public void listenerCalled(EventListener listener, long nanos) {
+		m_listenerDispatch.record(nanos);
+		String name = listener.getClass().getName();
+		Histogram histogram = m_listenerDispatchByClass.get(name);
+		if (histogram == null) {
+			Histogram other = m_listenerDispatchByClass.putIfAbsent(name, histogram = new Histogram());
+			if (other != null) {
+				histogram = other;
+			}
+		}
+		histogram.record(nanos);
+	}
+
+	@Override
+	public void eventQueueDepthChanged(int depth) {
+		m_queueDepth = depth;
+		for (int max = m_maxQueueDepth.get(); (depth > max) && !m_maxQueueDepth.compareAndSet(max, depth); max = m_maxQueueDepth.get()) {
+			// Retry until updated or a deeper queue was seen.
+		}
+	}
+
+	@Override
+	public void serviceRegistered(String[] classes) {
+		for (int i = 0; i < classes.length; i++) {
+			AtomicLong count = m_registrations.get(classes[i]);
+			if (count == null) {
+				AtomicLong other = m_registrations.putIfAbsent(classes[i], count = new AtomicLong());
+				if (other != null) {
+					count = other;
+				}
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void serviceUnregistered(String[] classes) {
+		for (int i = 0; i < classes.length; i++) {
+			AtomicLong count = m_registrations.get(classes[i]);
+			if (count != null) {
+				count.decrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public Histogram getLookupLatency() {
+		return m_lookupLatency;
+	}
+
+	@Override
+	public Histogram getLockWait() {
+		return m_lockWait;
+	}
+
+	@Override
+	public Histogram getListenerDispatch() {
+		return m_listenerDispatch;
+	}
+
+	@Override
+	public Map<String, Histogram> getListenerDispatchByClass() {
+		return new TreeMap<String, Histogram>(m_listenerDispatchByClass);
+	}
+
+	@Override
+	public int getEventQueueDepth() {
+		return m_queueDepth;
+	}
+
+	@Override
+	public int getMaxEventQueueDepth() {
+		return m_maxQueueDepth.get();
+	}
+
+	@Override
+	public Map<String, Long> getRegistrationCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : m_registrations.entrySet()) {
+			long count = entry.getValue().get();
+			if (count > 0) {
+				counts.put(entry.getKey(), count);
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public void reset() {
+		m_lookupLatency.reset();
+		m_lockWait.reset();
+		m_listenerDispatch.reset();
+		m_listenerDispatchByClass.clear();
+		m_maxQueueDepth.set(m_queueDepth);
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Values are counted in
+ * power of two buckets, so percentiles are upper bounds within a factor of
+ * two, while recording a value only takes a few atomic increments.
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 64;
+
+	// Bucket i counts the values below 2^i and not below 2^(i-1), bucket 0
+	// counts zeros.
+	private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong m_count = new AtomicLong();
+	private final AtomicLong m_total = new AtomicLong();
+	private final AtomicLong m_max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		m_buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		m_count.incrementAndGet();
+		m_total.addAndGet(nanos);
+		for (long max = m_max.get(); (nanos > max) && !m_max.compareAndSet(max, nanos); max = m_max.get()) {
+			// Retry until updated or a bigger value was recorded.
+		}
+	}
+
+	public long getCount() {
+		return m_count.get();
+	}
+
+	public long getTotalNanos() {
+		return m_total.get();
+	}
+
+	public long getMaxNanos() {
+		return m_max.get();
+	}
+
+	public long getMeanNanos() {
+		long count = m_count.get();
+		return (count > 0) ? m_total.get() / count : 0;
+	}
+
+	public long getPercentile50Nanos() {
+		return getPercentileNanos(0.5);
+	}
+
+	public long getPercentile90Nanos() {
+		return getPercentileNanos(0.9);
+	}
+
+	public long getPercentile99Nanos() {
+		return getPercentileNanos(0.99);
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile between 0 and 1.
+	 * @return An upper bound of the given percentile, 0 if nothing was
+	 *         recorded.
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] buckets = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = m_buckets.get(i);
+			count += buckets[i];
+		}
+		long rank = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if ((seen >= rank) && (seen > 0)) {
+				// Don't report more than the maximum.
+				return Math.min((1L << i) - 1, m_max.get());
+			}
+		}
+		return 0;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			m_buckets.set(i, 0);
+		}
+		m_count.set(0);
+		m_total.set(0);
+		m_max.set(0);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.metrics;
+
+import java.util.EventListener;
+
+/**
+ * Receives measurements from the service registry and event dispatcher.
+ * Methods are called on the hot paths of the registry, possibly by many
+ * threads at once, so implementations must be thread-safe and cheap. Nothing
+ * is measured unless an instance is given to the registry.
+ */
+public interface RegistryMetrics {
+
+	/**
+	 * Called after each service reference lookup.
+	 *
+	 * @param nanos
+	 *            The time the lookup took.
+	 */
+	void serviceReferencesLookedUp(long nanos);
+
+	/**
+	 * Called when getting or releasing a service factory service had to wait
+	 * for another thread using the same service registration.
+	 *
+	 * @param nanos
+	 *            The time spent waiting.
+	 */
+	void registrationLockWaited(long nanos);
+
+	/**
+	 * Called after an event was delivered to a listener.
+	 *
+	 * @param listener
+	 *            The listener.
+	 * @param nanos
+	 *            The time the listener took.
+	 */
+	void listenerCalled(EventListener listener, long nanos);
+
+	/**
+	 * Called when the number of undelivered asynchronous events changed.
+	 *
+	 * @param depth
+	 *            The number of undelivered events.
+	 */
+	void eventQueueDepthChanged(int depth);
+
+	/**
+	 * @param classes
+	 *            The objectClass of the registered service.
+	 */
+	void serviceRegistered(String[] classes);
+
+	/**
+	 * @param classes
+	 *            The objectClass of the unregistered service.
+	 */
+	void serviceUnregistered(String[] classes);
+}
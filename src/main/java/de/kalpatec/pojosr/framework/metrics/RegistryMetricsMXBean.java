@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 Karl Pauls karlpauls@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.kalpatec.pojosr.framework.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link DefaultRegistryMetrics}, exported through
+ * the platform MBean server under {@link #OBJECT_NAME} with an "id" key.
+ */
+public interface RegistryMetricsMXBean {
+
+	public static final String OBJECT_NAME = "de.kalpatec.pojosr.framework:type=RegistryMetrics";
+
+	/**
+	 * @return The latency of service reference lookups.
+	 */
+	Histogram getLookupLatency();
+
+	/**
+	 * @return The time spent waiting for service registrations locked by
+	 *         other threads.
+	 */
+	Histogram getLockWait();
+
+	/**
+	 * @return The time listeners took to handle an event.
+	 */
+	Histogram getListenerDispatch();
+
+	/**
+	 * @return The time listeners took to handle an event by listener class.
+	 */
+	Map<String, Histogram> getListenerDispatchByClass();
+
+	int getEventQueueDepth();
+
+	int getMaxEventQueueDepth();
+
+	/**
+	 * @return The number of registered services by objectClass.
+	 */
+	Map<String, Long> getRegistrationCounts();
+
+	/**
+	 * Clears all measurements except for the registration counts, which
+	 * reflect the current registrations.
+	 */
+	void reset();
+}